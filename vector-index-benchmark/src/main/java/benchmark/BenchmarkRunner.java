@@ -207,16 +207,12 @@ public class BenchmarkRunner {
     }
 
     public static double calculateRecall(List<QueryResult> results, int[] groundTruth, int k) {
-        Set<String> resultIds = new HashSet<>();
-        for (int i = 0; i < Math.min(k, results.size()); i ++) {
-            resultIds.add(results.get(i).getId());
-        }
+        int[] resultOrdinals = datasetOrdinals(results, k);
 
         // count matches with the ground truth (first k entries)
         int matches = 0;
         for (int i = 0; i < Math.min(k, groundTruth.length); i++) {
-            String groundTruthId = "sift_" + groundTruth[i];
-            if (resultIds.contains(groundTruthId)) {
+            if (contains(resultOrdinals, groundTruth[i])) {
                 matches++;
             }
         }
@@ -224,16 +220,50 @@ public class BenchmarkRunner {
     }
 
     public static int calculateRecallCount(List<QueryResult> results, List<Integer> filteredGT, int k) {
-        Set<String> resultIds = new HashSet<>();
-        for (int i = 0; i < Math.min(k, results.size()); i++) {
-            resultIds.add(results.get(i).getId());
-        }
+        int[] resultOrdinals = datasetOrdinals(results, k);
         int matches = 0;
         for (int gtId : filteredGT) {
-            if (resultIds.contains("sift_" + gtId)) {
+            if (contains(resultOrdinals, gtId)) {
                 matches++;
             }
         }
         return matches;
     }
+
+    // ground truth files refer to vectors by their position in the base file, and the loaders
+    // name vectors <prefix><position>, so the trailing number of an id is its dataset ordinal;
+    // only the top k ids are resolved and no strings are built per ground truth entry
+    private static int[] datasetOrdinals(List<QueryResult> results, int k) {
+        int n = Math.min(k, results.size());
+        int[] ordinals = new int[n];
+        for (int i = 0; i < n; i++) {
+            ordinals[i] = trailingNumber(results.get(i).getId());
+        }
+        return ordinals;
+    }
+
+    private static int trailingNumber(String id) {
+        int start = id.length();
+        while (start > 0 && Character.isDigit(id.charAt(start - 1))) {
+            start--;
+        }
+        if (start == id.length()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < id.length(); i++) {
+            value = value * 10 + (id.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    // k is small (10-100), a linear scan beats hashing here
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -1,9 +1,11 @@
 package benchmark.POC2;
 
+import index.hnsw.DiskIndexWarmer;
 import io.github.jbellis.jvector.disk.*;
 import io.github.jbellis.jvector.graph.*;
 import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
 import io.github.jbellis.jvector.graph.similarity.BuildScoreProvider;
+import io.github.jbellis.jvector.graph.similarity.DefaultSearchScoreProvider;
 import io.github.jbellis.jvector.quantization.CompressedVectors;
 import io.github.jbellis.jvector.quantization.ImmutablePQVectors;
 import io.github.jbellis.jvector.quantization.ProductQuantization;
@@ -53,6 +55,12 @@ public class DiskPersistenceBenchmark {
 
     public record ColdStartResult(double firstQueryMicros) {}
 
+    public record WarmStartResult(
+            List<DiskIndexWarmer.WarmupStats> warmup,
+            long warmupTimeMs,
+            double firstQueryMicros
+    ) {}
+
     public record SteadyStateResult(
             double p50Micros,
             double p95Micros,
@@ -60,6 +68,14 @@ public class DiskPersistenceBenchmark {
             double avgRecall
     ) {}
 
+    public record RerankSweepPoint(
+            int rerankK,
+            double p50Micros,
+            double p95Micros,
+            double avgRecall,
+            double avgVisitedNodes
+    ) {}
+
     public record MemoryResult(
             long onDiskIndexBytes,
             long pqVectorsBytes,
@@ -206,6 +222,34 @@ public class DiskPersistenceBenchmark {
         return new ColdStartResult((end - start) / 1000.0);
     }
 
+    /**
+     * Warms the index without queries (upper layers, entry neighborhood, optional hot node
+     * profile), then measures the first query latency.
+     */
+    public static WarmStartResult measureWarmStart(
+            OnDiskGraphIndex index,
+            VectorFloat<?> queryVector,
+            int k,
+            int efSearch,
+            int neighborhoodNodes,
+            int[] hotNodes
+    ) throws IOException {
+        long warmupStart = System.currentTimeMillis();
+        var warmer = new DiskIndexWarmer(index);
+        List<DiskIndexWarmer.WarmupStats> stats = new ArrayList<>();
+        stats.add(warmer.warmUpperLayers());
+        stats.add(warmer.warmEntryNeighborhood(neighborhoodNodes));
+        if (hotNodes != null) {
+            stats.add(warmer.replay(hotNodes));
+        }
+        long warmupTimeMs = System.currentTimeMillis() - warmupStart;
+
+        long start = System.nanoTime();
+        searchOnDisk(index, queryVector, k, efSearch);
+        long end = System.nanoTime();
+        return new WarmStartResult(stats, warmupTimeMs, (end - start) / 1000.0);
+    }
+
     // =====================
     // Phase 5: Steady State
     // =====================
@@ -248,6 +292,51 @@ public class DiskPersistenceBenchmark {
         return new SteadyStateResult(p50, p95, p99, avgRecall);
     }
 
+    // =====================
+    // Phase 5b: PQ Two-Phase Search
+    // =====================
+
+    /**
+     * Measures two-phase PQ search once per rerank depth: latency, recall and visited nodes.
+     * Each depth gets its own warmup so the page cache state is comparable across depths.
+     */
+    public static List<RerankSweepPoint> measureRerankSweep(
+            OnDiskGraphIndex index,
+            CompressedVectors pqVectors,
+            List<VectorFloat<?>> queryVectors,
+            List<int[]> groundTruth,
+            int k,
+            int[] rerankDepths,
+            int warmupCount
+    ) throws IOException {
+        List<RerankSweepPoint> points = new ArrayList<>(rerankDepths.length);
+        for (int rerankK : rerankDepths) {
+            for (int i = 0; i < warmupCount; i++) {
+                searchOnDisk(index, pqVectors, queryVectors.get(i % queryVectors.size()), k, rerankK);
+            }
+
+            List<Long> latencies = new ArrayList<>(queryVectors.size());
+            double totalRecall = 0.0;
+            long totalVisited = 0;
+            for (int i = 0; i < queryVectors.size(); i++) {
+                long start = System.nanoTime();
+                var result = searchOnDisk(index, pqVectors, queryVectors.get(i), k, rerankK);
+                long end = System.nanoTime();
+
+                latencies.add(end - start);
+                totalRecall += calculateRecall(result, groundTruth.get(i), k);
+                totalVisited += result.getVisitedCount();
+            }
+
+            Collections.sort(latencies);
+            double p50 = latencies.get(latencies.size() / 2) / 1000.0;
+            double p95 = latencies.get((int) (latencies.size() * 0.95)) / 1000.0;
+            points.add(new RerankSweepPoint(rerankK, p50, p95,
+                    totalRecall / queryVectors.size(), (double) totalVisited / queryVectors.size()));
+        }
+        return points;
+    }
+
     // =====================
     // Phase 6: Memory
     // =====================
@@ -363,7 +452,8 @@ public class DiskPersistenceBenchmark {
     // =====================
 
     /**
-     * Searches the on-disk index using exact scoring from INLINE_VECTORS.
+     * Searches the on-disk index using exact scoring from INLINE_VECTORS, every hop reads the
+     * inline vectors of the neighbors. See the PQ overload for the two-phase variant.
      * Opens a fresh view per query — safe for concurrent use, slight overhead per call.
      */
     static io.github.jbellis.jvector.graph.SearchResult searchOnDisk(
@@ -382,6 +472,28 @@ public class DiskPersistenceBenchmark {
         }
     }
 
+    /**
+     * Two-phase search: the graph walk scores candidates with the in-memory PQ codes, so a hop
+     * touches only the adjacency list on disk, and only the rerankK best candidates are scored
+     * again against their exact inline vectors. rerankK is also the size of the candidate list
+     * the walk keeps, rerankK / k is the overquery factor.
+     */
+    static io.github.jbellis.jvector.graph.SearchResult searchOnDisk(
+            OnDiskGraphIndex index,
+            CompressedVectors pqVectors,
+            VectorFloat<?> queryVector,
+            int k,
+            int rerankK
+    ) throws IOException {
+        try (var searcher = new GraphSearcher(index)) {
+            var asf = pqVectors.precomputedScoreFunctionFor(queryVector, VectorSimilarityFunction.EUCLIDEAN);
+            var reranker = ((ImmutableGraphIndex.ScoringView) searcher.getView())
+                    .rerankerFor(queryVector, VectorSimilarityFunction.EUCLIDEAN);
+            var ssp = new DefaultSearchScoreProvider(asf, reranker);
+            return searcher.search(ssp, k, Math.max(k, rerankK), 0.0f, 0.0f, Bits.ALL);
+        }
+    }
+
     /**
      * Calculates recall@k by comparing result ordinals against SIFT ground truth ordinals.
      * Works directly with ordinals — no string prefix needed for SIFT.
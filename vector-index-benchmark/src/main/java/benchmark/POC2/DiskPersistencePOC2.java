@@ -34,6 +34,10 @@ public class DiskPersistencePOC2 {
     private static final int K               = 10;
     private static final int PQ_SUBSPACES    = 16; // 16 subspaces x 8 dims = 128 dims
     private static final int WARMUP_COUNT    = 1000;
+    // base layer nodes around the entry point read by the query-free warmup in Phase 4b
+    private static final int WARMUP_NEIGHBORHOOD = 20_000;
+    // candidates kept by the PQ scored walk and re-ranked exactly, swept in Phase 5b
+    private static final int[] RERANK_DEPTHS = {10, 20, 50, 100, 200, 400};
     private static final String datasetPrefix = "sift_";
     private static final String dataset = "sift";
 
@@ -107,6 +111,23 @@ public class DiskPersistencePOC2 {
                     load.index(), queryJVectors.get(0), K, EF_SEARCH);
             System.out.printf("First query latency  : %.2f μs%n", cold.firstQueryMicros());
 
+            // =======================
+            // Phase 4b: Warm Start
+            // =======================
+            System.out.println("\n=== Phase 4b: Warm Start (prefetch, no warmup queries) ===");
+            var reload = DiskPersistenceBenchmark.loadIndex(GRAPH_PATH, PQ_PATH);
+            try {
+                var warm = DiskPersistenceBenchmark.measureWarmStart(
+                        reload.index(), queryJVectors.get(1), K, EF_SEARCH, WARMUP_NEIGHBORHOOD, null);
+                for (var stat : warm.warmup()) {
+                    System.out.println("Warmup " + stat);
+                }
+                System.out.printf("Warmup time          : %d ms%n", warm.warmupTimeMs());
+                System.out.printf("First query latency  : %.2f μs%n", warm.firstQueryMicros());
+            } finally {
+                reload.readerSupplier().close();
+            }
+
             // =======================
             // Phase 6: Steady State
             // =======================
@@ -117,6 +138,19 @@ public class DiskPersistencePOC2 {
             System.out.printf("Latency P95          : %.2f μs%n",  steady.p95Micros());
             System.out.printf("Latency P99          : %.2f μs%n",  steady.p99Micros());
             System.out.printf("Avg Recall@%d        : %.4f%n",  K, steady.avgRecall());
+
+            // =======================
+            // Phase 5b: PQ Two-Phase Search
+            // =======================
+            System.out.println("\n=== Phase 5b: PQ Two-Phase Search (recall vs rerank depth) ===");
+            var sweep = DiskPersistenceBenchmark.measureRerankSweep(
+                    load.index(), load.pqVectors(), queryJVectors, groundTruth, K, RERANK_DEPTHS, WARMUP_COUNT);
+            System.out.println("rerankK  overquery  P50 (μs)   P95 (μs)   Recall@" + K + "  Visited");
+            for (var point : sweep) {
+                System.out.printf("%7d  %8.1fx  %9.2f  %9.2f  %9.4f  %7.0f%n",
+                        point.rerankK(), (double) point.rerankK() / K, point.p50Micros(),
+                        point.p95Micros(), point.avgRecall(), point.avgVisitedNodes());
+            }
         } finally {
             // Always close the reader supplier to release the mmap
             load.readerSupplier().close();
@@ -0,0 +1,57 @@
+package core;
+
+// low level distance kernels shared by every index
+// the implementation is picked once at startup: SIMD (jdk.incubator.vector) when the module
+// is present and the preferred species is wide enough, scalar loops otherwise
+//
+// the offset variants score a query against a vector stored inside a larger array
+// (see VectorStore) without copying it out; query.length floats are read from data[offset]
+public interface DistanceEngine {
+
+    DistanceEngine INSTANCE = select();
+
+    // sum of squared differences, callers take the root only when they need a true distance
+    float squaredL2(float[] query, float[] data, int offset);
+
+    float dotProduct(float[] query, float[] data, int offset);
+
+    // cosine similarity in [-1, 1], does not assume normalized input
+    float cosine(float[] query, float[] data, int offset);
+
+    String getName();
+
+    default float squaredL2(float[] vector1, float[] vector2) {
+        requireSameLength(vector1, vector2);
+        return squaredL2(vector1, vector2, 0);
+    }
+
+    default float dotProduct(float[] vector1, float[] vector2) {
+        requireSameLength(vector1, vector2);
+        return dotProduct(vector1, vector2, 0);
+    }
+
+    default float cosine(float[] vector1, float[] vector2) {
+        requireSameLength(vector1, vector2);
+        return cosine(vector1, vector2, 0);
+    }
+
+    static void requireSameLength(float[] vector1, float[] vector2) {
+        if (vector1.length != vector2.length) {
+            throw new IllegalArgumentException("Vectors must have the same length.");
+        }
+    }
+
+    // -Ddistance.engine=scalar forces the fallback, handy when measuring the SIMD speedup
+    private static DistanceEngine select() {
+        DistanceEngine engine = new ScalarDistanceEngine();
+        if (!"scalar".equalsIgnoreCase(System.getProperty("distance.engine"))) {
+            try {
+                engine = new SimdDistanceEngine();
+            } catch (LinkageError | UnsupportedOperationException e) {
+                // incubator module not added (--add-modules jdk.incubator.vector) or species too narrow
+            }
+        }
+        System.out.println("Using " + engine.getName() + " distance engine");
+        return engine;
+    }
+}
@@ -1,34 +1,52 @@
 package core;
 
-public class DistanceMetric {
-    public static float cosineDistance(float[] vector1, float[] vector2) {
-        if (vector1.length != vector2.length) {
-            throw new IllegalArgumentException("Vectors must have the same length.");
+// typed distance metric, resolve it once per index or query and reuse it inside the scan loop
+// compare() returns a rank preserving score (squared L2 for euclidean) so scans can skip Math.sqrt,
+// toDistance() turns that score into the reported distance and is only applied to the final top k
+public enum DistanceMetric {
+    EUCLIDEAN {
+        @Override
+        public float compare(float[] query, float[] data, int offset) {
+            return DistanceEngine.INSTANCE.squaredL2(query, data, offset);
         }
-        float product = 0.0f;
-        for (int i = 0; i < vector1.length; i ++) {
-            product += vector1[i] * vector2[i];
-        }
-        return 1.0f - product;
-    }
 
-    public float euclideanDistance(float[] vector1, float [] vector2) {
-        if (vector1.length != vector2.length) {
-            throw new IllegalArgumentException("Vectors must have the same length.");
+        @Override
+        public float toDistance(float score) {
+            return (float) Math.sqrt(score);
         }
-        float sum = 0;
-        for (int i = 0; i < vector1.length; i++) {
-            float diff = vector1[i] - vector2[i];
-            sum += diff*diff;
+    },
+    // expects normalized vectors (see RandomVectorGenerator), so 1 - dot is the cosine distance
+    COSINE {
+        @Override
+        public float compare(float[] query, float[] data, int offset) {
+            return 1.0f - DistanceEngine.INSTANCE.dotProduct(query, data, offset);
         }
-        return (float) Math.sqrt(sum);
+
+        @Override
+        public float toDistance(float score) {
+            return score;
+        }
+    };
+
+    // scores query against the query.length floats stored at data[offset]
+    public abstract float compare(float[] query, float[] data, int offset);
+
+    public float compare(float[] vector1, float[] vector2) {
+        DistanceEngine.requireSameLength(vector1, vector2);
+        return compare(vector1, vector2, 0);
+    }
+
+    public abstract float toDistance(float score);
+
+    public float distance(float[] vector1, float[] vector2) {
+        return toDistance(compare(vector1, vector2));
     }
 
-    public float calculateDistance(float[] query, float[] data, String dataset) {
+    public static DistanceMetric forDataset(String dataset) {
         return switch (dataset) {
-            case "random" -> cosineDistance(query, data);
-            case "sift" -> euclideanDistance(query, data);
-            default -> 0.0f;
+            case "random" -> COSINE;
+            case "sift" -> EUCLIDEAN;
+            default -> throw new IllegalArgumentException("No distance metric for dataset: " + dataset);
         };
     }
 }
@@ -0,0 +1,109 @@
+package core;
+
+import utils.SharedTopK;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// runs one query over the partitions of an index (flat shards, IVF lists, segments) in parallel
+// every partition merges its own top k into a SharedTopK as soon as it is done, instead of all
+// candidates being collected and sorted at the end, and the shared bound lets partitions still
+// running skip what can no longer make the top k. Latency then follows the slowest partition
+// instead of the sum of all of them.
+//
+// the calling thread scans as well: partitions are claimed from a counter by the caller and up to
+// parallelism - 1 helper tasks, and the caller waits for the partitions, not the helpers. A helper
+// still queued behind busy threads finds nothing left to claim, so searching from a task of the
+// same executor (searchAsync) cannot deadlock and a saturated pool only costs parallelism.
+public class FanOutSearch {
+    @FunctionalInterface
+    public interface PartitionScan {
+        // scans one partition and merges its candidates into topK, topK.bound() is the score to beat
+        void scan(int partition, SharedTopK topK);
+    }
+
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    // executor null scans every partition on the calling thread; virtual threads work too,
+    // e.g. Executors.newVirtualThreadPerTaskExecutor() with parallelism up to the partition count
+    public FanOutSearch(ExecutorService executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        this.executor = executor;
+        this.parallelism = executor == null ? 1 : parallelism;
+    }
+
+    // partitions are claimed in index order, so callers put the most promising ones first
+    // to tighten the bound early
+    public SharedTopK search(int partitions, int k, PartitionScan scan) {
+        SharedTopK topK = new SharedTopK(k);
+        if (partitions <= 0) {
+            return topK;
+        }
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(partitions);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            int partition;
+            while ((partition = next.getAndIncrement()) < partitions) {
+                try {
+                    if (failure.get() == null) {
+                        scan.scan(partition, topK);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+
+        int helpers = Math.min(parallelism, partitions) - 1;
+        try {
+            for (int i = 0; i < helpers; i++) {
+                executor.execute(worker);
+            }
+        } catch (RejectedExecutionException e) {
+            // shut down pool, the caller scans what is left
+        }
+        worker.run();
+        awaitUninterruptibly(done);
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException re) {
+            throw re;
+        }
+        if (t instanceof Error error) {
+            throw error;
+        }
+        if (t != null) {
+            throw new IllegalStateException("Partition scan failed", t);
+        }
+        return topK;
+    }
+
+    // the scans may run under a lock the caller holds, so the caller must not leave before them
+    private static void awaitUninterruptibly(CountDownLatch done) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+}
@@ -0,0 +1,245 @@
+package core;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// maps external string ids to dense int ordinals and back
+// lookups go through an open addressing table of ordinals (linear probing, backward shift
+// deletion), so there is no boxed Integer or map entry per vector; the strings themselves are
+// only touched on a hash match or when a result id is resolved
+//
+// an id put at a new ordinal is rebound, its old ordinal still resolves to it so results
+// produced before the rebind stay readable
+//
+// safe for concurrent use: lookups share a read lock, mutations take the write lock
+public class IdDictionary {
+    private static final int EMPTY = -1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private String[] ids;
+    private int size;
+
+    // slot -> ordinal, EMPTY when free; slotHashes caches the mixed hash of the key
+    private int[] slots;
+    private int[] slotHashes;
+    private int mask;
+    private int bound;
+
+    public IdDictionary() {
+        this(16);
+    }
+
+    public IdDictionary(int expectedSize) {
+        this.ids = new String[Math.max(16, expectedSize)];
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize) * 2 - 1) << 1;
+        initTable(capacity);
+    }
+
+    // binds id to the next free ordinal and returns it
+    public int add(String id) {
+        lock.writeLock().lock();
+        try {
+            int ordinal = size;
+            put(id, ordinal);
+            return ordinal;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // binds id to ordinal; ordinal may be at most size()
+    public void put(String id, int ordinal) {
+        lock.writeLock().lock();
+        try {
+            if (ordinal < 0 || ordinal > size) {
+                throw new IndexOutOfBoundsException("Ordinal " + ordinal + " out of bounds for size " + size);
+            }
+            // the ordinal's previous id must not keep pointing at it
+            String previous = ordinal < size ? ids[ordinal] : null;
+            if (previous != null && !previous.equals(id) && ordinalOf(previous) == ordinal) {
+                remove(previous);
+            }
+            if (ordinal == size) {
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, size * 2);
+                }
+                size++;
+            }
+            ids[ordinal] = id;
+
+            int hash = mix(id.hashCode());
+            int slot = findSlot(id, hash);
+            if (slots[slot] == EMPTY) {
+                slotHashes[slot] = hash;
+                bound++;
+            }
+            slots[slot] = ordinal;
+            if (bound * 2 > slots.length) {
+                resize(slots.length * 2);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // returns the ordinal bound to id, -1 if none
+    public int ordinalOf(String id) {
+        lock.readLock().lock();
+        try {
+            int hash = mix(id.hashCode());
+            int ordinal = slots[findSlot(id, hash)];
+            return ordinal == EMPTY ? -1 : ordinal;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // unbinds id, returns the ordinal it was bound to or -1
+    public int remove(String id) {
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(id, mix(id.hashCode()));
+            int ordinal = slots[slot];
+            if (ordinal == EMPTY) {
+                return -1;
+            }
+            deleteSlot(slot);
+            bound--;
+            return ordinal;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public String idOf(int ordinal) {
+        lock.readLock().lock();
+        try {
+            if (ordinal < 0 || ordinal >= size) {
+                throw new IndexOutOfBoundsException("Ordinal " + ordinal + " out of bounds for size " + size);
+            }
+            return ids[ordinal];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // number of ordinals handed out (bound or not)
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // number of ids currently bound
+    public int boundCount() {
+        lock.readLock().lock();
+        try {
+            return bound;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // drops the id kept for an ordinal no id is bound to anymore, so the string can be collected;
+    // idOf returns null for it until the ordinal is put again
+    public void forget(int ordinal) {
+        lock.writeLock().lock();
+        try {
+            if (ordinal < 0 || ordinal >= size) {
+                throw new IndexOutOfBoundsException("Ordinal " + ordinal + " out of bounds for size " + size);
+            }
+            String id = ids[ordinal];
+            if (id != null && ordinalOf(id) != ordinal) {
+                ids[ordinal] = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // drops ordinals from newSize on, ids still bound to them are unbound
+    public void truncate(int newSize) {
+        lock.writeLock().lock();
+        try {
+            if (newSize < 0 || newSize > size) {
+                throw new IndexOutOfBoundsException("Cannot truncate size " + size + " to " + newSize);
+            }
+            for (int ordinal = newSize; ordinal < size; ordinal++) {
+                String id = ids[ordinal];
+                if (id != null && ordinalOf(id) == ordinal) {
+                    remove(id);
+                }
+                ids[ordinal] = null;
+            }
+            size = newSize;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // slot holding id, or the empty slot where it would go
+    private int findSlot(String id, int hash) {
+        int slot = hash & mask;
+        while (slots[slot] != EMPTY) {
+            if (slotHashes[slot] == hash && ids[slots[slot]].equals(id)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // backward shift deletion, keeps probe chains intact without tombstones
+    private void deleteSlot(int hole) {
+        slots[hole] = EMPTY;
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (slots[slot] == EMPTY) {
+                return;
+            }
+            int home = slotHashes[slot] & mask;
+            // the entry may move into the hole if the hole lies between its home and its slot
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                slots[hole] = slots[slot];
+                slotHashes[hole] = slotHashes[slot];
+                slots[slot] = EMPTY;
+                hole = slot;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldSlots = slots;
+        int[] oldHashes = slotHashes;
+        initTable(capacity);
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != EMPTY) {
+                int slot = oldHashes[i] & mask;
+                while (slots[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = oldSlots[i];
+                slotHashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    private void initTable(int capacity) {
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        slotHashes = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    // spreads String.hashCode so sequential ids like "sift_1", "sift_2" do not cluster
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -3,35 +3,84 @@ package core;
 import utils.CentroidDistance;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class KMeans {
+    // partitions smaller than this are not worth a fork
+    private static final int MIN_PARTITION_SIZE = 1024;
+    // k-means++ seeding runs on at most this many points per cluster
+    private static final int SEEDING_SAMPLE_PER_CLUSTER = 64;
+    // relative perturbation applied when an empty centroid takes over half of a large cluster
+    private static final float SPLIT_EPSILON = 1.0f / 1024;
+
     private final int nClusters;
     private final int maxIterations;
-    private List<Vector> centroids;
+    private final int parallelism;
+    private final int miniBatchSize;
+    // centroids packed in one store, centroid i is ordinal i
+    private VectorStore centroids;
     private final Random random;
-    private final int dimension;
+    private int dimension;
+    private final DistanceMetric metric = DistanceMetric.EUCLIDEAN;
 
     public KMeans(int nClusters, int maxIterations) {
+        this(nClusters, maxIterations, 1, 0);
+    }
+
+    // parallelism > 1 assigns points on a fork-join pool with one centroid accumulator per partition
+    // miniBatchSize > 0 switches to mini-batch k-means: every iteration samples that many points
+    // and nudges their centroids, instead of reassigning the whole dataset
+    public KMeans(int nClusters, int maxIterations, int parallelism, int miniBatchSize) {
         this.nClusters = nClusters;
         this.maxIterations = maxIterations;
+        this.parallelism = Math.max(1, parallelism);
+        this.miniBatchSize = Math.max(0, miniBatchSize);
         this.random = new Random(42);
-        this.dimension = 128;
     }
 
     // run k-means clustering on the dataset
     public void fit(List<Vector> data) {
-        System.out.println("Running k-means with " + nClusters + " clusters");
+        if (data.size() < nClusters) {
+            throw new IllegalArgumentException("Need at least " + nClusters + " vectors, got " + data.size());
+        }
+        this.dimension = data.get(0).dimensions();
+        System.out.println("Running " + (miniBatchSize > 0 ? "mini-batch " : "") + "k-means with " + nClusters
+                + " clusters" + (parallelism > 1 ? " on " + parallelism + " threads" : ""));
+
+        ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        try {
+            // k-means++ seeding
+            initializeCentroids(data, pool);
+
+            if (miniBatchSize > 0) {
+                fitMiniBatch(data, pool);
+            } else {
+                fitFullBatch(data, pool);
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        System.out.println("K-means clustering complete");
+    }
 
-        // initialize centroids randomly
-        initializeCentroids(data);
+    // lloyd iterations over the whole dataset
+    private void fitFullBatch(List<Vector> data, ForkJoinPool pool) {
+        int[] assignments = new int[data.size()];
+        Arrays.fill(assignments, -1);
+        Accumulator[] accumulators = newAccumulators(partitionCount(data.size()));
 
         // iterate to refine cluster
         for (int i = 0; i < maxIterations; i++) {
-            // assign each vector to nearest centroid
-            List<List<Vector>> clusters = assignToCluster(data);
+            // assign each vector to nearest centroid, summing members per partition
+            assignAll(data, 0, data.size(), assignments, accumulators, pool);
 
-            // update centroids (mean of each cluster)
-            boolean changed = updateCentroids(clusters);
+            // update centroids (mean of each cluster), then re-seed the empty ones
+            Accumulator totals = merge(accumulators);
+            boolean changed = updateCentroids(totals);
+            changed |= repairEmptyClusters(totals.counts) > 0;
 
             // break early if converged
             if (!changed && i > 5) {
@@ -43,76 +92,235 @@ public class KMeans {
                 System.out.println("K-means iteration " + (i+1)+"/" + maxIterations);
             }
         }
-        System.out.println("K-means clustering complete");
     }
 
-    // initialize centroids by randomly selecting vectors from dataset
-    private void initializeCentroids(List<Vector> data) {
-        centroids = new ArrayList<>(nClusters);
+    // Sculley's mini-batch k-means: per-centroid learning rate 1 / (points seen so far)
+    private void fitMiniBatch(List<Vector> data, ForkJoinPool pool) {
+        int batchSize = Math.min(miniBatchSize, data.size());
+        List<Vector> batch = new ArrayList<>(batchSize);
+        int[] assignments = new int[batchSize];
+        Accumulator[] accumulators = newAccumulators(partitionCount(batchSize));
+        long[] seen = new long[nClusters];
+        float[] centroid = new float[dimension];
+
+        for (int i = 0; i < maxIterations; i++) {
+            batch.clear();
+            for (int b = 0; b < batchSize; b++) {
+                batch.add(data.get(random.nextInt(data.size())));
+            }
+            assignAll(batch, 0, batchSize, assignments, accumulators, pool);
+            Accumulator batchSums = merge(accumulators);
+
+            // moving the centroid towards the batch mean once equals the per-point updates
+            for (int c = 0; c < nClusters; c++) {
+                int count = batchSums.counts[c];
+                if (count == 0) continue;
+                seen[c] += count;
+                float rate = (float) count / seen[c];
+                centroids.copyInto(c, centroid);
+                int base = c * dimension;
+                for (int d = 0; d < dimension; d++) {
+                    float batchMean = (float) (batchSums.sums[base + d] / count);
+                    centroid[d] += rate * (batchMean - centroid[d]);
+                }
+                centroids.set(c, centroid);
+            }
+
+            // a centroid that no sample reached after a few batches is stranded
+            if (i >= 2) {
+                int[] counts = new int[nClusters];
+                for (int c = 0; c < nClusters; c++) {
+                    counts[c] = (int) Math.min(Integer.MAX_VALUE, seen[c]);
+                }
+                if (repairEmptyClusters(counts) > 0) {
+                    for (int c = 0; c < nClusters; c++) {
+                        seen[c] = counts[c];
+                    }
+                }
+            }
 
-        // randomly select nClusters vectors as initial centroids
-        List<Integer> indices = new ArrayList<>();
-        for (int i = 0; i < data.size(); i++) {
-            indices.add(i);
+            if ((i+1) % 5 == 0) {
+                System.out.println("Mini-batch k-means iteration " + (i+1)+"/" + maxIterations);
+            }
         }
-        Collections.shuffle(indices, random);
+    }
 
-        for (int i = 0; i < nClusters; i++) {
-            Vector original = data.get(indices.get(i));
-            // create a copy of vector
-            float[] centroidData = Arrays.copyOf(original.vector(), original.dimensions());
-            centroids.add(new Vector("centroid_" + i, centroidData));
+    // k-means++: the first centroid is uniform, every next one is drawn with probability
+    // proportional to its squared distance to the closest centroid picked so far
+    // large inputs are seeded from a random sample, refreshing the distances runs on the pool
+    private void initializeCentroids(List<Vector> data, ForkJoinPool pool) {
+        centroids = new VectorStore(dimension);
+        List<Vector> sample = sample(data, Math.max(nClusters, nClusters * SEEDING_SAMPLE_PER_CLUSTER));
+
+        float[] closest = new float[sample.size()];
+        Arrays.fill(closest, Float.POSITIVE_INFINITY);
+        int next = random.nextInt(sample.size());
+        for (int c = 0; c < nClusters; c++) {
+            int centroidId = centroids.add(sample.get(next).vector());
+
+            // refresh distances to the closest centroid, partial sums per partition
+            double[] partialSums = new double[partitionCount(sample.size())];
+            forEachPartition(sample.size(), partialSums.length, pool, (p, start, end) -> {
+                double sum = 0;
+                for (int i = start; i < end; i++) {
+                    float distance = centroids.compare(metric, sample.get(i).vector(), centroidId);
+                    if (distance < closest[i]) {
+                        closest[i] = distance;
+                    }
+                    sum += closest[i];
+                }
+                partialSums[p] = sum;
+            });
+
+            double total = 0;
+            for (double partial : partialSums) {
+                total += partial;
+            }
+            if (total == 0) {
+                // fewer distinct points than clusters, fall back to uniform picks
+                next = random.nextInt(sample.size());
+                continue;
+            }
+            double target = random.nextDouble() * total;
+            next = sample.size() - 1;
+            for (int i = 0; i < sample.size(); i++) {
+                target -= closest[i];
+                if (target < 0) {
+                    next = i;
+                    break;
+                }
+            }
         }
     }
 
-    // assign each vector to its nearest centroid
-    private List<List<Vector>> assignToCluster(List<Vector> data) {
-        // initialize empty clusters
-        List<List<Vector>> clusters = new ArrayList<>(nClusters);
-        for (int i = 0; i < nClusters; i++) {
-            clusters.add(new ArrayList<>());
+    // uniform sample without replacement (partial fisher-yates), the data itself when small enough
+    private List<Vector> sample(List<Vector> data, int size) {
+        if (data.size() <= size) {
+            return data;
+        }
+        int[] indices = new int[data.size()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
         }
+        List<Vector> sample = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int j = i + random.nextInt(indices.length - i);
+            int tmp = indices[i];
+            indices[i] = indices[j];
+            indices[j] = tmp;
+            sample.add(data.get(indices[i]));
+        }
+        return sample;
+    }
+
+    // every empty cluster takes over half of the currently largest one: the large centroid is
+    // copied and both copies are pushed apart by SPLIT_EPSILON, so the next assignment divides
+    // its members between them; counts are updated in place, returns the number of splits
+    private int repairEmptyClusters(int[] counts) {
+        int repaired = 0;
+        float[] large = new float[dimension];
+        float[] split = new float[dimension];
+        for (int empty = 0; empty < nClusters; empty++) {
+            if (counts[empty] != 0) continue;
+
+            int largest = 0;
+            for (int c = 1; c < nClusters; c++) {
+                if (counts[c] > counts[largest]) {
+                    largest = c;
+                }
+            }
+            if (counts[largest] < 2) {
+                break;
+            }
 
-        // assign each vector to the nearest centroid
-        for (Vector v : data) {
-            int nearestCluster = findNearestCentroid(v.vector());
-            clusters.get(nearestCluster).add(v);
+            centroids.copyInto(largest, large);
+            for (int d = 0; d < dimension; d++) {
+                float sign = (d % 2 == 0) ? 1.0f : -1.0f;
+                split[d] = large[d] * (1 + sign * SPLIT_EPSILON);
+                large[d] = large[d] * (1 - sign * SPLIT_EPSILON);
+            }
+            centroids.set(empty, split);
+            centroids.set(largest, large);
+            counts[empty] = counts[largest] / 2;
+            counts[largest] -= counts[empty];
+            repaired++;
+        }
+        return repaired;
+    }
+
+    // assigns data[from, to) and accumulates member sums, split across the pool when there is one
+    private void assignAll(List<Vector> data, int from, int to, int[] assignments,
+                           Accumulator[] accumulators, ForkJoinPool pool) {
+        forEachPartition(to - from, accumulators.length, pool, (p, start, end) -> {
+            Accumulator accumulator = accumulators[p];
+            accumulator.clear();
+            for (int i = from + start; i < from + end; i++) {
+                float[] v = data.get(i).vector();
+                int cluster = findNearestCentroid(v);
+                assignments[i] = cluster;
+                accumulator.add(cluster, v);
+            }
+        });
+    }
+
+    // splits [0, size) into contiguous partitions and runs them on the pool, or inline without one
+    private static void forEachPartition(int size, int partitions, ForkJoinPool pool, PartitionTask task) {
+        int partitionSize = (size + partitions - 1) / partitions;
+        List<RecursiveAction> actions = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            int partition = p;
+            int start = Math.min(size, p * partitionSize);
+            int end = Math.min(size, start + partitionSize);
+            actions.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    task.run(partition, start, end);
+                }
+            });
+        }
+        if (pool == null) {
+            actions.forEach(RecursiveAction::invoke);
+        } else {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(actions);
+                }
+            });
         }
-        return clusters;
+    }
+
+    @FunctionalInterface
+    private interface PartitionTask {
+        void run(int partition, int start, int end);
     }
 
     // update centroids to be the mean of their assigned vectors
     // returns true if any centroid changed significantly
-    private boolean updateCentroids(List<List<Vector>> clusters) {
+    private boolean updateCentroids(Accumulator totals) {
         boolean changed = false;
+        float[] newCentroid = new float[dimension];
 
         for (int i = 0; i < nClusters; i++) {
-            List<Vector> cluster = clusters.get(i);
+            int count = totals.counts[i];
 
             // skip empty cluster
-            if (cluster.isEmpty()) continue;
+            if (count == 0) continue;
 
             // calculate mean of all vectors in a cluster
-            float [] newCentroid = new float[dimension];
-
-            for (Vector v : cluster) {
-                for (int d = 0; d < dimension; d++) {
-                    newCentroid[d] += v.vector()[d];
-                }
-            }
-
+            int base = i * dimension;
             for (int d = 0; d < dimension; d++) {
-                newCentroid[d] /= cluster.size();
+                newCentroid[d] = (float) (totals.sums[base + d] / count);
             }
 
             //check if centroid changed significantly
-            float distance = new DistanceMetric().euclideanDistance(centroids.get(i).vector(), newCentroid);
+            float distance = metric.toDistance(centroids.compare(metric, newCentroid, i));
             if (distance > 0.01f) {
                 changed = true;
             }
 
             // update centroid
-            centroids.set(i, new Vector("centroid_" + i, newCentroid));
+            centroids.set(i, newCentroid);
         }
         return changed;
     }
@@ -120,10 +328,10 @@ public class KMeans {
     // find the nearest centroid (used during build)
     public int findNearestCentroid(float[] vector) {
         int nearest = 0;
-        float minDistance = new DistanceMetric().euclideanDistance(vector, centroids.get(0).vector());
+        float minDistance = centroids.compare(metric, vector, 0);
 
         for (int i = 1; i < nClusters; i++) {
-            float distance = new DistanceMetric().euclideanDistance(vector, centroids.get(i).vector());
+            float distance = centroids.compare(metric, vector, i);
             if (distance < minDistance) {
                 minDistance = distance;
                 nearest = i;
@@ -132,11 +340,25 @@ public class KMeans {
         return nearest;
     }
 
+    // nearest centroid of every vector, computed on the same partitions as training
+    public int[] assign(List<Vector> data) {
+        int[] assignments = new int[data.size()];
+        ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        try {
+            assignAll(data, 0, data.size(), assignments, newAccumulators(partitionCount(data.size())), pool);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        return assignments;
+    }
+
     // find nProbe nearest centroids(used during search)
     public List<Integer> findNearestCentroids(float [] query, int nProbe) {
         List<CentroidDistance> distances = new ArrayList<>();
         for (int i = 0; i < nClusters; i++) {
-            float distance = new DistanceMetric().euclideanDistance(query, centroids.get(i).vector());
+            float distance = centroids.compare(metric, query, i);
             distances.add(new CentroidDistance(i, distance));
         }
         Collections.sort(distances);
@@ -149,11 +371,66 @@ public class KMeans {
     }
 
     public List<Vector> getCentroids() {
-        return centroids;
+        List<Vector> result = new ArrayList<>(nClusters);
+        for (int i = 0; i < nClusters; i++) {
+            result.add(new Vector("centroid_" + i, centroids.get(i)));
+        }
+        return result;
     }
 
     public int getNClusters() {
         return nClusters;
     }
 
+    private int partitionCount(int points) {
+        return Math.max(1, Math.min(parallelism, points / MIN_PARTITION_SIZE));
+    }
+
+    private Accumulator[] newAccumulators(int partitions) {
+        Accumulator[] accumulators = new Accumulator[partitions];
+        for (int p = 0; p < partitions; p++) {
+            accumulators[p] = new Accumulator(nClusters, dimension);
+        }
+        return accumulators;
+    }
+
+    // per-partition member sums, merged once per iteration so threads never share a centroid
+    private static Accumulator merge(Accumulator[] accumulators) {
+        Accumulator total = accumulators[0];
+        for (int p = 1; p < accumulators.length; p++) {
+            Accumulator other = accumulators[p];
+            for (int i = 0; i < total.sums.length; i++) {
+                total.sums[i] += other.sums[i];
+            }
+            for (int c = 0; c < total.counts.length; c++) {
+                total.counts[c] += other.counts[c];
+            }
+        }
+        return total;
+    }
+
+    private static final class Accumulator {
+        final double[] sums;
+        final int[] counts;
+        final int dimension;
+
+        Accumulator(int nClusters, int dimension) {
+            this.sums = new double[nClusters * dimension];
+            this.counts = new int[nClusters];
+            this.dimension = dimension;
+        }
+
+        void add(int cluster, float[] v) {
+            int base = cluster * dimension;
+            for (int d = 0; d < dimension; d++) {
+                sums[base + d] += v[d];
+            }
+            counts[cluster]++;
+        }
+
+        void clear() {
+            Arrays.fill(sums, 0.0);
+            Arrays.fill(counts, 0);
+        }
+    }
 }
@@ -2,17 +2,36 @@ package core;
 
 public class QueryResult implements Comparable<QueryResult> {
     String id;
+    final int ordinal;
+    // set when the result was produced from an ordinal, the id is resolved on first getId()
+    final IdDictionary dictionary;
     float distance;
 
     public QueryResult(String id, float distance) {
         this.id = id;
+        this.ordinal = -1;
+        this.dictionary = null;
         this.distance = distance;
     }
 
+    public QueryResult(int ordinal, float distance, IdDictionary dictionary) {
+        this.ordinal = ordinal;
+        this.distance = distance;
+        this.dictionary = dictionary;
+    }
+
     public String getId() {
+        if (id == null) {
+            id = dictionary.idOf(ordinal);
+        }
         return id;
     }
 
+    // index internal ordinal, -1 for indexes that only know string ids
+    public int getOrdinal() {
+        return ordinal;
+    }
+
     public float getDistance() {
         return distance;
     }
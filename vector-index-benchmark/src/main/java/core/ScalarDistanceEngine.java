@@ -0,0 +1,50 @@
+package core;
+
+// plain loops, used when the vector api is not available
+final class ScalarDistanceEngine implements DistanceEngine {
+
+    @Override
+    public float squaredL2(float[] query, float[] data, int offset) {
+        float sum = 0;
+        for (int i = 0; i < query.length; i++) {
+            float diff = query[i] - data[offset + i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    @Override
+    public float dotProduct(float[] query, float[] data, int offset) {
+        float product = 0.0f;
+        for (int i = 0; i < query.length; i++) {
+            product += query[i] * data[offset + i];
+        }
+        return product;
+    }
+
+    @Override
+    public float cosine(float[] query, float[] data, int offset) {
+        float product = 0.0f;
+        float norm1 = 0.0f;
+        float norm2 = 0.0f;
+        for (int i = 0; i < query.length; i++) {
+            float b = data[offset + i];
+            product += query[i] * b;
+            norm1 += query[i] * query[i];
+            norm2 += b * b;
+        }
+        return cosineFrom(product, norm1, norm2);
+    }
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    static float cosineFrom(float product, float norm1, float norm2) {
+        if (norm1 == 0.0f || norm2 == 0.0f) {
+            return 0.0f;
+        }
+        return (float) (product / Math.sqrt((double) norm1 * norm2));
+    }
+}
@@ -0,0 +1,83 @@
+package core;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// vector api kernels: full lanes are processed with fma, the remaining tail with scalar code
+// loading this class fails with a LinkageError when jdk.incubator.vector is not on the module path
+final class SimdDistanceEngine implements DistanceEngine {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    SimdDistanceEngine() {
+        // below 128 bits the lane shuffling costs more than it saves
+        if (SPECIES.length() < 4) {
+            throw new UnsupportedOperationException("Preferred float species has only " + SPECIES.length() + " lanes");
+        }
+    }
+
+    @Override
+    public float squaredL2(float[] query, float[] data, int offset) {
+        int bound = SPECIES.loopBound(query.length);
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector diff = FloatVector.fromArray(SPECIES, query, i)
+                    .sub(FloatVector.fromArray(SPECIES, data, offset + i));
+            acc = diff.fma(diff, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            float diff = query[i] - data[offset + i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    @Override
+    public float dotProduct(float[] query, float[] data, int offset) {
+        int bound = SPECIES.loopBound(query.length);
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector a = FloatVector.fromArray(SPECIES, query, i);
+            acc = a.fma(FloatVector.fromArray(SPECIES, data, offset + i), acc);
+        }
+        float product = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            product += query[i] * data[offset + i];
+        }
+        return product;
+    }
+
+    @Override
+    public float cosine(float[] query, float[] data, int offset) {
+        int bound = SPECIES.loopBound(query.length);
+        FloatVector productAcc = FloatVector.zero(SPECIES);
+        FloatVector norm1Acc = FloatVector.zero(SPECIES);
+        FloatVector norm2Acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector a = FloatVector.fromArray(SPECIES, query, i);
+            FloatVector b = FloatVector.fromArray(SPECIES, data, offset + i);
+            productAcc = a.fma(b, productAcc);
+            norm1Acc = a.fma(a, norm1Acc);
+            norm2Acc = b.fma(b, norm2Acc);
+        }
+        float product = productAcc.reduceLanes(VectorOperators.ADD);
+        float norm1 = norm1Acc.reduceLanes(VectorOperators.ADD);
+        float norm2 = norm2Acc.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            float b = data[offset + i];
+            product += query[i] * b;
+            norm1 += query[i] * query[i];
+            norm2 += b * b;
+        }
+        return ScalarDistanceEngine.cosineFrom(product, norm1, norm2);
+    }
+
+    @Override
+    public String getName() {
+        return "SIMD (" + SPECIES.length() + " x float)";
+    }
+}
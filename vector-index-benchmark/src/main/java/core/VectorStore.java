@@ -0,0 +1,141 @@
+package core;
+
+import java.util.Arrays;
+import java.util.List;
+
+// contiguous float storage for fixed dimension vectors, addressed by int ordinal
+// vectors are packed back to back into large float[] slabs, so a scan walks memory
+// sequentially and there is no per-vector array header or object; ordinal -> (slab, offset)
+// is a shift and a mask. Slabs are appended as the store grows, existing ones never move.
+//
+// not synchronized: a single writer may append while readers read ordinals that were published
+// to them through a happens-before edge (a volatile size, a lock), since written slabs never move
+public class VectorStore {
+    // ~16MB per slab, small enough for the allocator, large enough that slabs stay few
+    private static final int SLAB_FLOATS = 1 << 22;
+
+    private final int dimension;
+    private final int slabShift;
+    private final int slabMask;
+    private float[][] slabs;
+    private int size;
+
+    public VectorStore(int dimension) {
+        if (dimension <= 0) {
+            throw new IllegalArgumentException("Dimension must be positive: " + dimension);
+        }
+        this.dimension = dimension;
+        // vectors per slab is the largest power of two that fits in SLAB_FLOATS
+        int vectorsPerSlab = Integer.highestOneBit(Math.max(1, SLAB_FLOATS / dimension));
+        this.slabShift = Integer.numberOfTrailingZeros(vectorsPerSlab);
+        this.slabMask = vectorsPerSlab - 1;
+        this.slabs = new float[0][];
+    }
+
+    public static VectorStore of(List<Vector> vectors) {
+        VectorStore store = new VectorStore(vectors.get(0).dimensions());
+        for (Vector v : vectors) {
+            store.add(v.vector());
+        }
+        return store;
+    }
+
+    // appends a copy of the vector, returns its ordinal
+    public int add(float[] vector) {
+        int ordinal = size;
+        ensureCapacity(ordinal + 1);
+        write(ordinal, vector);
+        size++;
+        return ordinal;
+    }
+
+    // overwrites the vector stored at an existing ordinal
+    public void set(int ordinal, float[] vector) {
+        checkOrdinal(ordinal);
+        write(ordinal, vector);
+    }
+
+    // copies the vector at ordinal from over the one at ordinal to
+    public void copy(int from, int to) {
+        checkOrdinal(from);
+        checkOrdinal(to);
+        System.arraycopy(slab(from), offset(from), slab(to), offset(to), dimension);
+    }
+
+    // drops every vector from newSize on, slabs are kept for reuse
+    public void truncate(int newSize) {
+        if (newSize < 0 || newSize > size) {
+            throw new IndexOutOfBoundsException("Cannot truncate size " + size + " to " + newSize);
+        }
+        size = newSize;
+    }
+
+    // releases the slabs past the last vector, e.g. after a truncate
+    public void trimToSize() {
+        int slabsNeeded = size == 0 ? 0 : ((size - 1) >>> slabShift) + 1;
+        if (slabsNeeded < slabs.length) {
+            slabs = Arrays.copyOf(slabs, slabsNeeded);
+        }
+    }
+
+    // slab holding the vector, read dimension() floats from offset(ordinal)
+    public float[] slab(int ordinal) {
+        return slabs[ordinal >>> slabShift];
+    }
+
+    public int offset(int ordinal) {
+        return (ordinal & slabMask) * dimension;
+    }
+
+    public float compare(DistanceMetric metric, float[] query, int ordinal) {
+        return metric.compare(query, slabs[ordinal >>> slabShift], (ordinal & slabMask) * dimension);
+    }
+
+    public void copyInto(int ordinal, float[] destination) {
+        checkOrdinal(ordinal);
+        System.arraycopy(slab(ordinal), offset(ordinal), destination, 0, dimension);
+    }
+
+    // returns a copy, prefer copyInto or the slab accessors on hot paths
+    public float[] get(int ordinal) {
+        float[] copy = new float[dimension];
+        copyInto(ordinal, copy);
+        return copy;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public long ramBytesUsed() {
+        return (long) slabs.length * (slabMask + 1) * dimension * Float.BYTES;
+    }
+
+    private void write(int ordinal, float[] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected dimension " + dimension + " but got " + vector.length);
+        }
+        System.arraycopy(vector, 0, slab(ordinal), offset(ordinal), dimension);
+    }
+
+    private void ensureCapacity(int capacity) {
+        int slabsNeeded = ((capacity - 1) >>> slabShift) + 1;
+        if (slabsNeeded > slabs.length) {
+            float[][] grown = Arrays.copyOf(slabs, slabsNeeded);
+            for (int i = slabs.length; i < slabsNeeded; i++) {
+                grown[i] = new float[(slabMask + 1) * dimension];
+            }
+            slabs = grown;
+        }
+    }
+
+    private void checkOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= size) {
+            throw new IndexOutOfBoundsException("Ordinal " + ordinal + " out of bounds for size " + size);
+        }
+    }
+}
@@ -1,95 +1,72 @@
 package dataset;
 
 import core.Vector;
+import core.VectorIndex;
+import core.VectorStore;
 import io.jhdf.HdfFile;
 import io.jhdf.api.Dataset;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class DatasetLoader {
+    // fvecs / ivecs / bvecs files are read through a memory mapping, see MappedVectorFile
     public static List<Vector> loadFVectors(String filePath, String dataset) throws IOException {
-        List<Vector> vectors = new ArrayList<>();
-        try (FileInputStream fis = new FileInputStream(filePath)) {
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            int vectorId = 0;
-
-            while (bis.available() > 0) {
-                byte [] dimBytes = new byte[4];
-                var ignored = bis.read(dimBytes);
-                ByteBuffer dimBuffer = ByteBuffer.wrap(dimBytes).order(ByteOrder.LITTLE_ENDIAN);
-                int dimension = dimBuffer.getInt();
-
-                // read vector data (dimension * 4 bytes, little-endian)
-                byte [] vectorBytes = new byte[dimension * 4];
-                var ignored2 = bis.read(vectorBytes);
-                ByteBuffer vectorBuffer = ByteBuffer.wrap(vectorBytes).order(ByteOrder.LITTLE_ENDIAN);
-
-                float [] data = new float[dimension];
-                for (int i = 0; i < dimension; i++) {
-                    data[i] = vectorBuffer.getFloat();
-                }
-
-                vectors.add(new Vector(dataset + vectorId, data));
-                vectorId++;
-            }
-
-            bis.close();
-        }
-        return vectors;
+        return open(filePath, MappedVectorFile.Format.FVECS).toVectors(dataset);
     }
 
-    public static List<int[]> loadIVecs(String filepath) throws IOException {
-        List<int []> groundTruth = new ArrayList<>();
-        try (FileInputStream fis = new FileInputStream(filepath)) {
-            BufferedInputStream bis = new BufferedInputStream(fis);
-
-            while (bis.available() > 0) {
-                byte [] dimBytes = new byte[4];
-                int bytesRead = bis.read(dimBytes);
-                if (bytesRead==-1) break;
-
-                ByteBuffer dimBuffer = ByteBuffer.wrap(dimBytes).order(ByteOrder.LITTLE_ENDIAN);
-                int dimension = dimBuffer.getInt();
+    // vectors [from, to) only, ids keep their position in the file
+    public static List<Vector> loadFVectors(String filePath, String dataset, int from, int to) throws IOException {
+        return open(filePath, MappedVectorFile.Format.FVECS).slice(from, to).toVectors(dataset);
+    }
 
-                // read vector data (dimension * 4 bytes, little-endian)
-                byte [] idsBytes = new byte[dimension * 4];
-                var ignored2 = bis.read(idsBytes);
-                ByteBuffer idsBuffer = ByteBuffer.wrap(idsBytes).order(ByteOrder.LITTLE_ENDIAN);
+    // unsigned byte components (e.g. SIFT-1B) are widened to float
+    public static List<Vector> loadBVectors(String filePath, String dataset) throws IOException {
+        return open(filePath, MappedVectorFile.Format.BVECS).toVectors(dataset);
+    }
 
-                int [] neighbors = new int[dimension];
-                for (int i = 0; i < dimension; i++) {
-                    neighbors[i] = idsBuffer.getInt();
-                }
+    public static List<Vector> loadBVectors(String filePath, String dataset, int from, int to) throws IOException {
+        return open(filePath, MappedVectorFile.Format.BVECS).slice(from, to).toVectors(dataset);
+    }
 
-                groundTruth.add(neighbors);
-            }
+    // lazy random-access view, vectors are decoded from the mapping on every get
+    public static List<Vector> mapVectors(String filePath, String dataset) throws IOException {
+        return MappedVectorFile.open(filePath).asVectors(dataset);
+    }
 
-            bis.close();
-        }
-        return groundTruth;
+    public static List<int[]> loadIVecs(String filepath) throws IOException {
+        return open(filepath, MappedVectorFile.Format.IVECS).toIntArrays();
     }
 
+    // read in row chunks, the chunk rows become the vectors' arrays (see HDF5VectorReader)
     public static List<Vector> loadHDF5Vectors(String filepath, String datasetName) throws IOException {
-        List<Vector> vectors = new ArrayList<>();
+        try (HDF5VectorReader reader = new HDF5VectorReader(filepath, datasetName)) {
+            return reader.toVectors("vec_");
+        }
+    }
 
-        try (HdfFile hdfFile = new HdfFile(Paths.get(filepath))) {
-            Dataset dataset = hdfFile.getDatasetByPath(datasetName);
-            float[][] data = (float[][]) dataset.getData();
+    // streams the rows to the consumer, only one chunk is on the heap at a time
+    public static void streamHDF5Vectors(String filepath, String datasetName, Consumer<Vector> consumer) throws IOException {
+        try (HDF5VectorReader reader = new HDF5VectorReader(filepath, datasetName)) {
+            reader.forEach("vec_", consumer);
+        }
+    }
 
-            for (int i = 0; i < data.length; i++) {
-                vectors.add(new Vector("vec_" + i, data[i]));
-            }
+    // builds the index on the first chunk and inserts the rest chunk by chunk
+    public static void buildHDF5Index(String filepath, String datasetName, VectorIndex index) throws IOException {
+        try (HDF5VectorReader reader = new HDF5VectorReader(filepath, datasetName)) {
+            reader.buildInto(index, "vec_", HDF5VectorReader.DEFAULT_CHUNK_ROWS);
         }
+    }
 
-        return vectors;
+    public static VectorStore loadHDF5VectorStore(String filepath, String datasetName) throws IOException {
+        try (HDF5VectorReader reader = new HDF5VectorReader(filepath, datasetName)) {
+            return reader.toVectorStore();
+        }
     }
 
     public static List<int[]> loadHDF5GroundTruth(String filepath, String datasetName) throws IOException {
@@ -106,4 +83,8 @@ public class DatasetLoader {
 
         return groundTruth;
     }
+
+    private static MappedVectorFile open(String filePath, MappedVectorFile.Format format) throws IOException {
+        return MappedVectorFile.open(Path.of(filePath), format);
+    }
 }
@@ -0,0 +1,121 @@
+package dataset;
+
+import core.Vector;
+import core.VectorIndex;
+import core.VectorStore;
+import io.jhdf.HdfFile;
+import io.jhdf.api.Dataset;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// reads a 2d float dataset of an hdf5 file (e.g. "train" / "test" of the ann-benchmarks files)
+// in row chunks through jhdf hyperslab reads, so only one chunk is on the heap at a time instead
+// of the whole float[][] plus its Vector wrappers
+public class HDF5VectorReader implements AutoCloseable {
+    // 64k rows of 128 floats is 32MB per chunk
+    public static final int DEFAULT_CHUNK_ROWS = 65536;
+
+    private final HdfFile hdfFile;
+    private final Dataset dataset;
+    private final int rows;
+    private final int dimension;
+
+    @FunctionalInterface
+    public interface ChunkConsumer {
+        // rows[i] is row firstRow + i of the dataset
+        void accept(int firstRow, float[][] rows);
+    }
+
+    public HDF5VectorReader(String filepath, String datasetName) throws IOException {
+        this.hdfFile = new HdfFile(Path.of(filepath));
+        try {
+            this.dataset = hdfFile.getDatasetByPath(datasetName);
+            int[] dimensions = dataset.getDimensions();
+            if (dimensions.length != 2 || dataset.getJavaType() != float.class) {
+                throw new IllegalArgumentException("Dataset " + datasetName + " is not a 2d float dataset");
+            }
+            this.rows = dimensions[0];
+            this.dimension = dimensions[1];
+        } catch (RuntimeException e) {
+            hdfFile.close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    // reads rows [from, to) chunk by chunk, each chunk is handed over and then dropped
+    public void forEachChunk(int from, int to, int chunkRows, ChunkConsumer consumer) {
+        if (from < 0 || to > rows || from > to) {
+            throw new IndexOutOfBoundsException("Rows [" + from + ", " + to + ") out of bounds for size " + rows);
+        }
+        for (int start = from; start < to; start += chunkRows) {
+            int count = Math.min(chunkRows, to - start);
+            float[][] chunk = (float[][]) dataset.getData(new long[] {start, 0}, new int[] {count, dimension});
+            consumer.accept(start, chunk);
+        }
+    }
+
+    public void forEachChunk(int chunkRows, ChunkConsumer consumer) {
+        forEachChunk(0, rows, chunkRows, consumer);
+    }
+
+    // ids are idPrefix + row
+    public void forEach(String idPrefix, Consumer<Vector> consumer) {
+        forEachChunk(DEFAULT_CHUNK_ROWS, (firstRow, chunk) -> {
+            for (int i = 0; i < chunk.length; i++) {
+                consumer.accept(new Vector(idPrefix + (firstRow + i), chunk[i]));
+            }
+        });
+    }
+
+    // the chunk rows become the vectors' arrays, no second copy
+    public List<Vector> toVectors(String idPrefix) {
+        List<Vector> vectors = new ArrayList<>(rows);
+        forEach(idPrefix, vectors::add);
+        return vectors;
+    }
+
+    // packs every row into a store, only the store and one chunk are on the heap
+    public VectorStore toVectorStore() {
+        VectorStore store = new VectorStore(dimension);
+        forEachChunk(DEFAULT_CHUNK_ROWS, (firstRow, chunk) -> {
+            for (float[] row : chunk) {
+                store.add(row);
+            }
+        });
+        return store;
+    }
+
+    // builds the index on the first chunk (trained indexes like IVF train on it), then feeds
+    // the remaining chunks through insertAsync
+    public void buildInto(VectorIndex index, String idPrefix, int chunkRows) {
+        forEachChunk(chunkRows, (firstRow, chunk) -> {
+            List<Vector> vectors = new ArrayList<>(chunk.length);
+            for (int i = 0; i < chunk.length; i++) {
+                vectors.add(new Vector(idPrefix + (firstRow + i), chunk[i]));
+            }
+            if (firstRow == 0) {
+                index.build(vectors);
+            } else {
+                index.insertAsync(vectors);
+            }
+            System.out.println("Inserted " + (firstRow + chunk.length) + "/" + rows + " vectors");
+        });
+    }
+
+    @Override
+    public void close() {
+        hdfFile.close();
+    }
+}
@@ -0,0 +1,250 @@
+package dataset;
+
+import core.Vector;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+// read-only, memory-mapped view of a .fvecs / .ivecs / .bvecs file
+// every record is a little-endian int dimension followed by dimension components (float, int or
+// unsigned byte). All records must share one dimension, so record i starts at i * stride and the
+// file is validated once on open instead of parsing a header per vector. Nothing is read into the
+// heap until a vector is asked for; files above 2GB are mapped as several record-aligned regions.
+public class MappedVectorFile {
+    public enum Format {
+        FVECS(Float.BYTES), IVECS(Integer.BYTES), BVECS(1);
+
+        private final int componentBytes;
+
+        Format(int componentBytes) {
+            this.componentBytes = componentBytes;
+        }
+
+        public static Format of(Path path) {
+            String name = path.getFileName().toString().toLowerCase();
+            if (name.endsWith(".fvecs")) return FVECS;
+            if (name.endsWith(".ivecs")) return IVECS;
+            if (name.endsWith(".bvecs")) return BVECS;
+            throw new IllegalArgumentException("Unknown vector file format: " + path);
+        }
+    }
+
+    private final Path path;
+    private final Format format;
+    private final int dimension;
+    private final long stride;
+    private final int recordsPerRegion;
+    private final ByteBuffer[] regions;
+    // typed views of the regions, component j of local record r is at r * (dimension + 1) + 1 + j
+    private final FloatBuffer[] floatRegions;
+    private final IntBuffer[] intRegions;
+    // this view covers records [offset, offset + size) of the file
+    private final int offset;
+    private final int size;
+
+    private MappedVectorFile(Path path, Format format, int dimension, long stride, int recordsPerRegion,
+                             ByteBuffer[] regions, int offset, int size) {
+        this.path = path;
+        this.format = format;
+        this.dimension = dimension;
+        this.stride = stride;
+        this.recordsPerRegion = recordsPerRegion;
+        this.regions = regions;
+        this.floatRegions = new FloatBuffer[regions.length];
+        this.intRegions = new IntBuffer[regions.length];
+        for (int r = 0; r < regions.length; r++) {
+            if (format == Format.FVECS) floatRegions[r] = regions[r].asFloatBuffer();
+            if (format == Format.IVECS) intRegions[r] = regions[r].asIntBuffer();
+        }
+        this.offset = offset;
+        this.size = size;
+    }
+
+    public static MappedVectorFile open(String path) throws IOException {
+        return open(Path.of(path));
+    }
+
+    public static MappedVectorFile open(Path path) throws IOException {
+        return open(path, Format.of(path));
+    }
+
+    public static MappedVectorFile open(Path path, Format format) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < Integer.BYTES) {
+                throw new IOException("Vector file " + path + " is empty");
+            }
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            int dimension = header.getInt(0);
+            if (dimension <= 0) {
+                throw new IOException("Vector file " + path + " has invalid dimension " + dimension);
+            }
+
+            long stride = Integer.BYTES + (long) dimension * format.componentBytes;
+            if (fileSize % stride != 0) {
+                throw new IOException("Vector file " + path + " has " + fileSize + " bytes, not a multiple of the "
+                        + stride + " byte record of dimension " + dimension);
+            }
+            long records = fileSize / stride;
+            if (records > Integer.MAX_VALUE) {
+                throw new IOException("Vector file " + path + " has more than " + Integer.MAX_VALUE + " records");
+            }
+
+            // a mapping is limited to 2GB, so regions hold a whole number of records each
+            int recordsPerRegion = (int) Math.min(records, Integer.MAX_VALUE / stride);
+            int regionCount = (int) ((records + recordsPerRegion - 1) / recordsPerRegion);
+            ByteBuffer[] regions = new ByteBuffer[regionCount];
+            for (int r = 0; r < regionCount; r++) {
+                long start = (long) r * recordsPerRegion * stride;
+                long length = Math.min(fileSize - start, (long) recordsPerRegion * stride);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                regions[r] = region.order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            // the mapping stays valid after the channel is closed
+            MappedVectorFile file = new MappedVectorFile(path, format, dimension, stride, recordsPerRegion,
+                    regions, 0, (int) records);
+            file.validate();
+            return file;
+        }
+    }
+
+    // records [from, to) of this view, shares the mapping
+    public MappedVectorFile slice(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("Slice [" + from + ", " + to + ") out of bounds for size " + size);
+        }
+        return new MappedVectorFile(path, format, dimension, stride, recordsPerRegion, regions, offset + from, to - from);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public Format format() {
+        return format;
+    }
+
+    // decodes vector index of this view into destination; ivecs components are widened to float
+    public void copyInto(int index, float[] destination) {
+        checkIndex(index);
+        int record = offset + index;
+        int region = record / recordsPerRegion;
+        int local = record % recordsPerRegion;
+        switch (format) {
+            case FVECS -> floatRegions[region].get(local * (dimension + 1) + 1, destination, 0, dimension);
+            case IVECS -> {
+                IntBuffer ints = intRegions[region];
+                int base = local * (dimension + 1) + 1;
+                for (int j = 0; j < dimension; j++) {
+                    destination[j] = ints.get(base + j);
+                }
+            }
+            case BVECS -> {
+                ByteBuffer bytes = regions[region];
+                int base = (int) (local * stride) + Integer.BYTES;
+                for (int j = 0; j < dimension; j++) {
+                    destination[j] = bytes.get(base + j) & 0xff;
+                }
+            }
+        }
+    }
+
+    public float[] vector(int index) {
+        float[] vector = new float[dimension];
+        copyInto(index, vector);
+        return vector;
+    }
+
+    // ivecs records, e.g. ground truth neighbor lists
+    public int[] ints(int index) {
+        if (format != Format.IVECS) {
+            throw new UnsupportedOperationException("Not an ivecs file: " + path);
+        }
+        checkIndex(index);
+        int record = offset + index;
+        int[] values = new int[dimension];
+        intRegions[record / recordsPerRegion].get((record % recordsPerRegion) * (dimension + 1) + 1, values, 0, dimension);
+        return values;
+    }
+
+    // lazy view, every get decodes the record; ids are idPrefix + position in the file
+    public List<Vector> asVectors(String idPrefix) {
+        return new VectorView(idPrefix);
+    }
+
+    // copies every record of this view onto the heap
+    public List<Vector> toVectors(String idPrefix) {
+        List<Vector> vectors = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            vectors.add(new Vector(idPrefix + (offset + i), vector(i)));
+        }
+        return vectors;
+    }
+
+    public List<int[]> toIntArrays() {
+        List<int[]> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(ints(i));
+        }
+        return values;
+    }
+
+    // a corrupt file usually shows up as a wrong dimension at a region start or at the end
+    private void validate() throws IOException {
+        for (int r = 0; r < regions.length; r++) {
+            checkHeader(r, 0);
+        }
+        int last = size - 1;
+        checkHeader(last / recordsPerRegion, last % recordsPerRegion);
+    }
+
+    private void checkHeader(int region, int local) throws IOException {
+        int header = regions[region].getInt((int) (local * stride));
+        if (header != dimension) {
+            long record = (long) region * recordsPerRegion + local;
+            throw new IOException("Vector file " + path + " record " + record + " has dimension " + header
+                    + ", expected " + dimension);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+    }
+
+    private class VectorView extends AbstractList<Vector> implements RandomAccess {
+        private final String idPrefix;
+
+        VectorView(String idPrefix) {
+            this.idPrefix = idPrefix;
+        }
+
+        @Override
+        public Vector get(int index) {
+            return new Vector(idPrefix + (offset + index), vector(index));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -1,56 +1,131 @@
 package index.flat;
 
 import core.DistanceMetric;
+import core.FanOutSearch;
+import core.IdDictionary;
 import core.QueryResult;
 import core.Vector;
 import core.VectorIndex;
+import core.VectorStore;
+import utils.AtomicBitSet;
+import utils.SharedTopK;
+import utils.TopKSelector;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// exact search baseline, safe for concurrent insert, delete and search
+// the store is append-only: an insert appends under a short append lock and publishes the new
+// ordinal, a delete only sets the ordinal's tombstone, so neither moves existing vectors and
+// searches scan the published ordinals without locking. Updates of one id are serialized by a
+// lock stripe chosen by the id's hash. Ordinals are never reused, deleted vectors keep their space.
 public class FlatIndex implements VectorIndex {
-
-    private List<Vector> vectors;
-    long distanceCalculations;
+    // searches scan the store in shards of this many ordinals, smaller scans are not worth a fork
+    private static final int MIN_PARTITION_SIZE = 16384;
+    private static final int LOCK_STRIPES = 64;
+
+    private final ForkJoinPool pool;
+    private final FanOutSearch fanOut;
+    private final ReentrantLock[] stripes;
+    private final Object appendLock = new Object();
+
+    // vectors live in one contiguous store, the dictionary maps ids to store ordinals
+    private volatile VectorStore store;
+    private volatile IdDictionary dictionary;
+    private volatile AtomicBitSet tombstones;
+    // ordinals below published are fully written, written last under the append lock
+    private volatile int published;
+    private final AtomicInteger liveCount = new AtomicInteger();
+    private final LongAdder distanceCalculations = new LongAdder();
 
     public FlatIndex() {
-        this.vectors = new ArrayList<>();
-        this.distanceCalculations = 0;
+        this(ForkJoinPool.commonPool());
+    }
+
+    // searches are split across the pool, insertAsync and searchAsync run on it
+    public FlatIndex(ForkJoinPool pool) {
+        this.pool = pool;
+        this.fanOut = new FanOutSearch(pool, pool.getParallelism());
+        this.stripes = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.dictionary = new IdDictionary();
+        this.tombstones = new AtomicBitSet();
     }
 
+    // replaces the contents, not meant to run concurrently with other calls
     @Override
     public void build(List<Vector> vectors) {
-        this.vectors = new ArrayList<>(vectors);
+        synchronized (appendLock) {
+            VectorStore newStore = vectors.isEmpty() ? null : new VectorStore(vectors.get(0).dimensions());
+            IdDictionary newDictionary = new IdDictionary(vectors.size());
+            AtomicBitSet newTombstones = new AtomicBitSet();
+            int live = 0;
+            for (Vector v : vectors) {
+                int previous = newDictionary.ordinalOf(v.id());
+                int ordinal = newStore.add(v.vector());
+                newDictionary.put(v.id(), ordinal);
+                newTombstones.ensureCapacity(ordinal + 1);
+                if (previous >= 0) {
+                    newTombstones.set(previous);
+                } else {
+                    live++;
+                }
+            }
+            this.store = newStore;
+            this.dictionary = newDictionary;
+            this.tombstones = newTombstones;
+            this.liveCount.set(live);
+            this.published = vectors.size();
+        }
     }
 
     @Override
     public int size() {
-        return vectors.size();
+        return liveCount.get();
     }
 
     @Override
     public List<QueryResult> search(float[] query, int k, String dataset) {
-        List<QueryResult> result = new ArrayList<>();
-        for (Vector vector : vectors) {
-            float distance = new DistanceMetric().calculateDistance(query, vector.vector(), dataset);
-            distanceCalculations++;
-            QueryResult queryResult = new QueryResult(vector.id(), distance);
-            result.add(queryResult);
+        DistanceMetric metric = DistanceMetric.forDataset(dataset);
+        // published first, everything up to it is then visible
+        int end = published;
+        VectorStore current = store;
+        IdDictionary ids = dictionary;
+        if (end == 0) {
+            return new ArrayList<>();
+        }
+
+        // shards are scanned in parallel, each keeps its own top k and merges it when done
+        AtomicBitSet deleted = tombstones;
+        int shards = (end + MIN_PARTITION_SIZE - 1) / MIN_PARTITION_SIZE;
+        TopKSelector topK = fanOut.search(shards, k, (shard, shared) -> {
+            int from = shard * MIN_PARTITION_SIZE;
+            scan(current, deleted, metric, query, k, from, Math.min(end, from + MIN_PARTITION_SIZE), shared);
+        }).result();
+
+        // only the winners are materialized as QueryResults
+        List<QueryResult> result = new ArrayList<>(topK.size());
+        for (int i = 0; i < topK.size(); i++) {
+            result.add(new QueryResult(topK.ordinalAt(i), metric.toDistance(topK.scoreAt(i)), ids));
         }
-        Collections.sort(result);
-        return result.subList(0, Math.min(k, result.size()));
+        return result;
     }
 
     @Override
     public long getDistanceCalculations() {
-        return distanceCalculations;
+        return distanceCalculations.sum();
     }
 
     @Override
     public void resetDistanceCalculations() {
-        this.distanceCalculations = 0;
+        distanceCalculations.reset();
     }
 
     @Override
@@ -58,23 +133,96 @@ public class FlatIndex implements VectorIndex {
         return "FLAT";
     }
 
+    // appends the vector, an existing id is rebound to the new ordinal and its old one tombstoned
     @Override
     public void insert(Vector vector) {
-        vectors.add(vector);
+        ReentrantLock stripe = stripeFor(vector.id());
+        stripe.lock();
+        try {
+            IdDictionary ids = dictionary;
+            int previous = ids.ordinalOf(vector.id());
+            synchronized (appendLock) {
+                if (store == null) {
+                    store = new VectorStore(vector.dimensions());
+                }
+                int ordinal = store.add(vector.vector());
+                tombstones.ensureCapacity(ordinal + 1);
+                ids.put(vector.id(), ordinal);
+                published = ordinal + 1;
+            }
+            if (previous >= 0) {
+                tombstones.set(previous);
+            } else {
+                liveCount.incrementAndGet();
+            }
+        } finally {
+            stripe.unlock();
+        }
     }
 
+    // O(1): unbinds the id and tombstones its ordinal
     @Override
     public void delete(String vectorId) {
-        vectors.removeIf(vector -> vector.id().equals(vectorId));
+        ReentrantLock stripe = stripeFor(vectorId);
+        stripe.lock();
+        try {
+            int ordinal = dictionary.remove(vectorId);
+            if (ordinal < 0) return;
+            tombstones.set(ordinal);
+            liveCount.decrementAndGet();
+        } finally {
+            stripe.unlock();
+        }
     }
 
+    // inserts in parallel chunks on the pool and waits for all of them
     @Override
     public void insertAsync(List<Vector> vectors) {
-
+        int chunkSize = Math.max(1, vectors.size() / (pool.getParallelism() * 4));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int from = 0; from < vectors.size(); from += chunkSize) {
+            List<Vector> chunk = vectors.subList(from, Math.min(vectors.size(), from + chunkSize));
+            futures.add(CompletableFuture.runAsync(() -> chunk.forEach(this::insert), pool));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
     }
 
     @Override
     public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset) {
-        return null;
+        return CompletableFuture.supplyAsync(() -> search(query, k, dataset), pool);
+    }
+
+    private ReentrantLock stripeFor(String id) {
+        int hash = id.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    // scans ordinals [from, to) into a local top k, skipping candidates that already lose to the
+    // shared bound; the local kth is published once per tombstone word so other shards prune sooner
+    private void scan(VectorStore store, AtomicBitSet tombstones, DistanceMetric metric, float[] query,
+                      int k, int from, int to, SharedTopK shared) {
+        TopKSelector topK = new TopKSelector(k);
+        long calculations = 0;
+        int ordinal = from;
+        while (ordinal < to) {
+            float bound = shared.bound();
+            // one tombstone word covers the next run of up to 64 ordinals
+            long deleted = tombstones.word(ordinal) >>> (ordinal & 63);
+            int runEnd = Math.min(to, (ordinal | 63) + 1);
+            for (; ordinal < runEnd; ordinal++, deleted >>>= 1) {
+                if ((deleted & 1) != 0) continue;
+                // sequential walk over the slabs
+                float score = store.compare(metric, query, ordinal);
+                calculations++;
+                if (score < bound) {
+                    topK.offer(ordinal, score);
+                }
+            }
+            if (topK.isFull()) {
+                shared.tighten(topK.threshold());
+            }
+        }
+        distanceCalculations.add(calculations);
+        shared.merge(topK);
     }
 }
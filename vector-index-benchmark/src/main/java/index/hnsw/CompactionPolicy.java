@@ -0,0 +1,37 @@
+package index.hnsw;
+
+/**
+ * When {@link CompactionScheduler} runs cleanup on a {@link JVectorHNSWIndex}.
+ * POC1 found cleanup cost peaking around 20% deleted nodes and recall collapsing past 80%,
+ * so the default triggers at 15% and stops deferring for search load at 50%.
+ *
+ * @param deletedRatioThreshold compact once deleted / (live + deleted) reaches this ratio
+ * @param minDeletedNodes       never compact for fewer deleted nodes than this
+ * @param checkIntervalMs       how often the ratio and the search load are sampled
+ * @param maxSearchesPerSecond  defer compaction while the index serves more searches than this, 0 disables the limit
+ * @param forceRatio            compact regardless of search load once the deleted ratio reaches this
+ * @param minIntervalMs         minimum time between the end of one run and the start of the next
+ */
+public record CompactionPolicy(double deletedRatioThreshold,
+                               int minDeletedNodes,
+                               long checkIntervalMs,
+                               double maxSearchesPerSecond,
+                               double forceRatio,
+                               long minIntervalMs) {
+
+    public CompactionPolicy {
+        if (deletedRatioThreshold <= 0 || deletedRatioThreshold >= 1) {
+            throw new IllegalArgumentException("deletedRatioThreshold must be in (0, 1): " + deletedRatioThreshold);
+        }
+        if (forceRatio < deletedRatioThreshold) {
+            throw new IllegalArgumentException("forceRatio must not be below deletedRatioThreshold");
+        }
+        if (checkIntervalMs <= 0) {
+            throw new IllegalArgumentException("checkIntervalMs must be positive: " + checkIntervalMs);
+        }
+    }
+
+    public static CompactionPolicy defaults() {
+        return new CompactionPolicy(0.15, 1000, 1000, 0, 0.5, 10_000);
+    }
+}
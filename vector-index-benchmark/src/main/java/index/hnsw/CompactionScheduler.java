@@ -0,0 +1,164 @@
+package index.hnsw;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs {@link JVectorHNSWIndex#cleanup()} in the background when a {@link CompactionPolicy} says so.
+ * A single daemon thread samples the index's pending deleted node count and search counter every
+ * checkIntervalMs. Once the deleted ratio reaches the threshold it compacts, unless the search
+ * rate is above the policy limit, in which case the run is deferred until load drops or the
+ * ratio reaches forceRatio. Every run is recorded in a bounded history.
+ */
+public class CompactionScheduler implements AutoCloseable {
+    private static final int MAX_HISTORY = 100;
+
+    /**
+     * One finished cleanup.
+     *
+     * @param startedAtMs   wall clock start, epoch millis
+     * @param durationMs    time spent in cleanup
+     * @param deletedNodes  pending deleted nodes when it started
+     * @param liveNodes     live nodes when it started
+     * @param deletedRatio  deleted / (live + deleted) when it started
+     * @param searchesPerSecond search rate measured before it started
+     * @param reason        what triggered it
+     */
+    public record CompactionRecord(long startedAtMs, long durationMs, int deletedNodes, int liveNodes,
+                                   double deletedRatio, double searchesPerSecond, String reason) {
+    }
+
+    private final JVectorHNSWIndex index;
+    private final CompactionPolicy policy;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final Deque<CompactionRecord> history = new ArrayDeque<>();
+
+    private long lastSearchCount;
+    private long lastCheckNanos;
+    private long lastRunEndNanos;
+    private int deferredChecks;
+
+    public CompactionScheduler(JVectorHNSWIndex index, CompactionPolicy policy) {
+        this.index = index;
+        this.policy = policy;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hnsw-compaction");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() {
+        lastSearchCount = index.getSearchCount();
+        lastCheckNanos = System.nanoTime();
+        lastRunEndNanos = lastCheckNanos - TimeUnit.MILLISECONDS.toNanos(policy.minIntervalMs());
+        scheduler.scheduleWithFixedDelay(this::check, policy.checkIntervalMs(), policy.checkIntervalMs(), TimeUnit.MILLISECONDS);
+        System.out.println("Auto-compaction started: threshold " + policy.deletedRatioThreshold()
+                + ", check every " + policy.checkIntervalMs() + " ms");
+    }
+
+    // runs cleanup on the scheduler thread now, regardless of the policy
+    public void triggerNow() {
+        scheduler.execute(() -> compact(searchRate(), "manual"));
+    }
+
+    public boolean isCompacting() {
+        return running.get();
+    }
+
+    // number of checks that wanted to compact but backed off for search load
+    public synchronized int getDeferredChecks() {
+        return deferredChecks;
+    }
+
+    // oldest first
+    public synchronized List<CompactionRecord> getHistory() {
+        return new ArrayList<>(history);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            // a running cleanup is not interruptible, wait for it
+            if (!scheduler.awaitTermination(10, TimeUnit.MINUTES)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void check() {
+        try {
+            double searchesPerSecond = searchRate();
+            int deleted = index.getSoftDeleteCount();
+            double ratio = index.getDeletedRatio();
+            if (deleted < policy.minDeletedNodes() || ratio < policy.deletedRatioThreshold()) {
+                return;
+            }
+            if (System.nanoTime() - lastRunEndNanos < TimeUnit.MILLISECONDS.toNanos(policy.minIntervalMs())) {
+                return;
+            }
+            if (ratio >= policy.forceRatio()) {
+                compact(searchesPerSecond, String.format("deleted ratio %.3f reached force ratio %.3f", ratio, policy.forceRatio()));
+            } else if (policy.maxSearchesPerSecond() > 0 && searchesPerSecond > policy.maxSearchesPerSecond()) {
+                synchronized (this) {
+                    deferredChecks++;
+                }
+            } else {
+                compact(searchesPerSecond, String.format("deleted ratio %.3f reached threshold %.3f", ratio, policy.deletedRatioThreshold()));
+            }
+        } catch (RuntimeException e) {
+            // keep the schedule alive, the next check retries
+            System.out.println("Auto-compaction check failed: " + e);
+        }
+    }
+
+    // searches per second since the previous sample
+    private double searchRate() {
+        long now = System.nanoTime();
+        long searches = index.getSearchCount();
+        double seconds = Math.max(1e-3, (now - lastCheckNanos) / 1e9);
+        double rate = (searches - lastSearchCount) / seconds;
+        lastSearchCount = searches;
+        lastCheckNanos = now;
+        return rate;
+    }
+
+    private void compact(double searchesPerSecond, String reason) {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int deleted = index.getSoftDeleteCount();
+            int live = index.size();
+            double ratio = index.getDeletedRatio();
+            long startedAt = System.currentTimeMillis();
+            long start = System.nanoTime();
+            System.out.println("Auto-compaction: " + reason + ", cleaning up " + deleted + " deleted nodes");
+
+            index.cleanup();
+
+            lastRunEndNanos = System.nanoTime();
+            long durationMs = TimeUnit.NANOSECONDS.toMillis(lastRunEndNanos - start);
+            System.out.println("Auto-compaction finished in " + durationMs + " ms");
+            synchronized (this) {
+                if (history.size() == MAX_HISTORY) {
+                    history.removeFirst();
+                }
+                history.addLast(new CompactionRecord(startedAt, durationMs, deleted, live, ratio, searchesPerSecond, reason));
+            }
+        } finally {
+            running.set(false);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package index.hnsw;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.github.jbellis.jvector.graph.NodesIterator;
+import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
+
+/**
+ * Pulls the parts of an {@link OnDiskGraphIndex} that the first searches will read into the page
+ * cache, instead of paying a page fault per hop on the first real queries after a load.
+ *
+ * Every search enters through the upper layers and walks down to the entry region of the base
+ * layer, so those are warmed first: the base layer adjacency and inline vector of every upper
+ * layer node, then a breadth-first neighborhood of the entry point. A {@link HotNodeProfile}
+ * saved by an earlier run can be replayed on top, and small files can be prefetched whole.
+ */
+public class DiskIndexWarmer {
+    public record WarmupStats(String phase, int nodesTouched, long bytesTouched, long timeMs) {
+        @Override
+        public String toString() {
+            if (bytesTouched > 0) {
+                return String.format("%s: %.1f MB in %d ms", phase, bytesTouched / 1_048_576.0, timeMs);
+            }
+            return String.format("%s: %d nodes in %d ms", phase, nodesTouched, timeMs);
+        }
+    }
+
+    // bytes per mapped region when prefetching a whole file
+    private static final long PREFETCH_REGION_BYTES = 64L << 20;
+
+    private final OnDiskGraphIndex graph;
+    private final int threads;
+
+    public DiskIndexWarmer(OnDiskGraphIndex graph, int threads) {
+        this.graph = graph;
+        this.threads = Math.max(1, threads);
+    }
+
+    public DiskIndexWarmer(OnDiskGraphIndex graph) {
+        this(graph, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Touches the base layer record (adjacency and inline vector) of every node that is on an
+     * upper layer. These are the nodes every search passes on its way down.
+     */
+    public WarmupStats warmUpperLayers() {
+        long start = System.currentTimeMillis();
+        BitSet upper = new BitSet(graph.getIdUpperBound());
+        for (int level = 1; level <= graph.getMaxLevel(); level++) {
+            NodesIterator nodes = graph.getNodes(level);
+            while (nodes.hasNext()) {
+                upper.set(nodes.nextInt());
+            }
+        }
+        int[] nodes = upper.stream().toArray();
+        touchNodes(nodes);
+        return new WarmupStats("upper layers", nodes.length, 0, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Breadth-first walk of the base layer from the entry point, touching up to maxNodes nodes.
+     */
+    public WarmupStats warmEntryNeighborhood(int maxNodes) {
+        long start = System.currentTimeMillis();
+        BitSet seen = new BitSet(graph.getIdUpperBound());
+        int[] frontier = new int[Math.min(maxNodes, graph.getIdUpperBound())];
+        int head = 0;
+        int tail = 0;
+        try (var view = graph.getView()) {
+            int entry = view.entryNode().node;
+            frontier[tail++] = entry;
+            seen.set(entry);
+            // the frontier array is the BFS queue, reading a node's neighbors touches its record
+            while (head < tail) {
+                int node = frontier[head++];
+                NodesIterator neighbors = view.getNeighborsIterator(0, node);
+                while (neighbors.hasNext() && tail < frontier.length) {
+                    int neighbor = neighbors.nextInt();
+                    if (!seen.get(neighbor)) {
+                        seen.set(neighbor);
+                        frontier[tail++] = neighbor;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Warming the entry neighborhood failed", e);
+        }
+        // the walk only read adjacency, the vectors are read in file order
+        int[] nodes = Arrays.copyOf(frontier, tail);
+        Arrays.sort(nodes);
+        touchNodes(nodes);
+        return new WarmupStats("entry neighborhood", tail, 0, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Touches the nodes of a saved profile, in file order so the reads are mostly sequential.
+     */
+    public WarmupStats replay(int[] profileNodes) {
+        long start = System.currentTimeMillis();
+        int[] nodes = Arrays.stream(profileNodes)
+                .filter(node -> node >= 0 && node < graph.getIdUpperBound())
+                .sorted()
+                .toArray();
+        touchNodes(nodes);
+        return new WarmupStats("profile replay", nodes.length, 0, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Reads a whole file into the page cache with one mapping per region, loaded in parallel.
+     * MappedByteBuffer.load() is the closest Java gets to madvise(WILLNEED) plus a touch of every
+     * page; only worth it when the file fits in the page cache.
+     */
+    public static WarmupStats prefetchFile(Path file, int threads) {
+        long start = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<long[]> regions = new ArrayList<>();
+            for (long offset = 0; offset < size; offset += PREFETCH_REGION_BYTES) {
+                regions.add(new long[] {offset, Math.min(PREFETCH_REGION_BYTES, size - offset)});
+            }
+            runInParallel(threads, regions.size(), (from, to) -> {
+                for (int r = from; r < to; r++) {
+                    channel.map(FileChannel.MapMode.READ_ONLY, regions.get(r)[0], regions.get(r)[1]).load();
+                }
+            });
+            return new WarmupStats("prefetch " + file.getFileName(), 0, size, System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Prefetching " + file + " failed", e);
+        }
+    }
+
+    // reads the base layer adjacency and the inline vector of each node, split across the threads
+    private void touchNodes(int[] nodes) {
+        LongAdder checksum = new LongAdder();
+        runInParallel(threads, nodes.length, (from, to) -> {
+            // one view per thread, a view is not thread safe
+            try (var view = graph.getView()) {
+                long sum = 0;
+                for (int i = from; i < to; i++) {
+                    NodesIterator neighbors = view.getNeighborsIterator(0, nodes[i]);
+                    while (neighbors.hasNext()) {
+                        sum += neighbors.nextInt();
+                    }
+                    sum += Float.floatToRawIntBits(view.getVector(nodes[i]).get(0));
+                }
+                // keeps the reads from being optimized away
+                checksum.add(sum);
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface RangeTask {
+        void run(int from, int to) throws IOException;
+    }
+
+    // splits [0, count) into one contiguous range per thread and waits for all of them
+    private static void runInParallel(int threads, int count, RangeTask task) {
+        if (count == 0) return;
+        int parts = Math.min(threads, count);
+        ExecutorService executor = Executors.newFixedThreadPool(parts, r -> {
+            Thread t = new Thread(r, "disk-warmup");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>(parts);
+            for (int p = 0; p < parts; p++) {
+                int from = (int) ((long) count * p / parts);
+                int to = (int) ((long) count * (p + 1) / parts);
+                futures.add(executor.submit(() -> {
+                    task.run(from, to);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Warmup interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Warmup failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package index.hnsw;
+
+import core.QueryResult;
+import core.Vector;
+import core.VectorIndex;
+import persistence.CheckpointFile;
+import persistence.WalRecord;
+import persistence.WriteAheadLog;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link JVectorHNSWIndex} whose inserts and deletes survive a crash.
+ *
+ * Every mutation is appended to a {@link WriteAheadLog} before it is applied, and a checkpoint
+ * writes the live vectors with the LSN they cover, after which the older log segments are dropped.
+ * Checkpoints run online: writers pause only to fix the LSN and the ordinal bound, then a
+ * background thread streams the vectors while inserts and deletes continue.
+ * open() recovers by folding the log records after the checkpoint LSN into the checkpoint's
+ * vectors and building the graph once from the result. The graph itself is never saved: POC2
+ * found JVector's graph save/load slower than a rebuild, and it is deprecated.
+ */
+public class DurableJVectorHNSWIndex implements VectorIndex, AutoCloseable {
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path directory;
+    private final WriteAheadLog.SyncMode syncMode;
+    private final ExecutorService insertExecutor;
+    private final JVectorHNSWIndex index;
+    private WriteAheadLog wal;
+
+    // mutations share the read side, a checkpoint takes the write side briefly, so no mutation is
+    // between its log append and its apply when the checkpoint LSN is fixed
+    private final ReadWriteLock mutationLock = new ReentrantReadWriteLock();
+    // log append and apply of one id happen under its stripe, so log order is apply order per id
+    private final ReentrantLock[] stripes;
+    // runs one checkpoint at a time, also the periodic ones
+    private final ScheduledExecutorService checkpointExecutor;
+
+    public record CheckpointStats(long lsn, long vectors, long pauseMicros, long writeMs, int segmentsDropped) {
+        @Override
+        public String toString() {
+            return String.format("Checkpoint of %d vectors at LSN %d: writers paused %d us, written in %d ms, "
+                    + "%d log segments dropped", vectors, lsn, pauseMicros, writeMs, segmentsDropped);
+        }
+    }
+
+    public DurableJVectorHNSWIndex(Path directory, int m, int efConstruction, int efSearch,
+                                   WriteAheadLog.SyncMode syncMode, ExecutorService insertExecutor) {
+        this.directory = directory;
+        this.syncMode = syncMode;
+        this.insertExecutor = insertExecutor;
+        this.index = new JVectorHNSWIndex(m, efConstruction, efSearch, insertExecutor);
+        this.stripes = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.checkpointExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public DurableJVectorHNSWIndex(Path directory, int m, int efConstruction, int efSearch,
+                                   WriteAheadLog.SyncMode syncMode) {
+        this(directory, m, efConstruction, efSearch, syncMode, null);
+    }
+
+    /**
+     * Recovers the last checkpoint plus the log after it and opens the log for new records.
+     */
+    public void open() throws IOException {
+        long startTime = System.currentTimeMillis();
+        // insertion order, so the rebuilt index hands out ordinals in a stable order
+        Map<String, float[]> live = new LinkedHashMap<>();
+        long checkpointLsn = CheckpointFile.read(directory, live::put);
+        int checkpointed = live.size();
+
+        int[] replayed = new int[1];
+        long lastLsn = WriteAheadLog.replay(directory, checkpointLsn, record -> {
+            if (record.type() == WalRecord.Type.INSERT) {
+                // a rebind moves the id to the end, like an insert of a new node
+                live.remove(record.id());
+                live.put(record.id(), record.vector());
+            } else {
+                live.remove(record.id());
+            }
+            replayed[0]++;
+        });
+        System.out.println("Recovered " + checkpointed + " vectors from checkpoint at LSN " + checkpointLsn
+                + " and " + replayed[0] + " log records up to LSN " + lastLsn);
+
+        if (!live.isEmpty()) {
+            List<Vector> vectors = new ArrayList<>(live.size());
+            live.forEach((id, vector) -> vectors.add(new Vector(id, vector)));
+            live.clear();
+            index.build(vectors);
+        }
+        this.wal = new WriteAheadLog(directory, lastLsn + 1, syncMode);
+        System.out.printf("Recovery completed in %.2fs\n", (System.currentTimeMillis() - startTime) / 1000.0);
+    }
+
+    /**
+     * Replaces the contents and checkpoints them, so the bulk load is never in the log.
+     */
+    @Override
+    public void build(List<Vector> vectors) {
+        mutationLock.writeLock().lock();
+        try {
+            checkOpen();
+            index.build(vectors);
+        } finally {
+            mutationLock.writeLock().unlock();
+        }
+        checkpoint();
+    }
+
+    /**
+     * Takes a checkpoint and waits for it.
+     */
+    public CheckpointStats checkpoint() {
+        return checkpointAsync().join();
+    }
+
+    /**
+     * Takes a checkpoint on the background writer thread, see writeCheckpoint.
+     */
+    public CompletableFuture<CheckpointStats> checkpointAsync() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                CheckpointStats stats = writeCheckpoint();
+                System.out.println(stats);
+                return stats;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Checkpoint failed", e);
+            }
+        }, checkpointExecutor);
+    }
+
+    /**
+     * Checkpoints every intervalMs on the background writer thread until close.
+     */
+    public void startPeriodicCheckpoints(long intervalMs) {
+        checkpointExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                System.out.println(writeCheckpoint());
+            } catch (IOException | RuntimeException e) {
+                // the log still holds everything, the next run retries
+                System.out.println("Periodic checkpoint failed: " + e);
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fuzzy checkpoint: under a short writer pause the LSN L and the ordinal bound are fixed and
+     * the store is pinned against truncation. The live vectors below the bound are then streamed
+     * while writers go on, so the file may already reflect some mutations after L. Recovery redoes
+     * every record after L on top, and each id that changed during the scan has such a record, so
+     * the result is the same as for a checkpoint taken exactly at L.
+     */
+    private CheckpointStats writeCheckpoint() throws IOException {
+        long pauseStart = System.nanoTime();
+        long lsn;
+        int bound;
+        mutationLock.writeLock().lock();
+        try {
+            checkOpen();
+            // every mutation up to lsn is applied, later ones are logged after it
+            lsn = wal.getLastLsn();
+            wal.rollover();
+            bound = index.isBuilt() ? index.pinOrdinals() : 0;
+        } finally {
+            mutationLock.writeLock().unlock();
+        }
+        long pauseMicros = (System.nanoTime() - pauseStart) / 1000;
+
+        long writeStart = System.currentTimeMillis();
+        long count;
+        try (CheckpointFile.Writer writer = new CheckpointFile.Writer(directory, lsn,
+                index.isBuilt() ? index.getDimension() : 0)) {
+            if (bound > 0) {
+                index.scanLive(bound, writer::add);
+            }
+            // what the scan saw of later mutations must not be durable before their records
+            wal.sync();
+            writer.commit();
+            count = writer.count();
+        } finally {
+            if (bound > 0) {
+                index.unpinOrdinals();
+            }
+        }
+        long writeMs = System.currentTimeMillis() - writeStart;
+
+        int dropped = wal.deleteSegmentsThrough(lsn);
+        return new CheckpointStats(lsn, count, pauseMicros, writeMs, dropped);
+    }
+
+    /**
+     * Logs the insert, then applies it. In GROUP sync mode it returns once the record is on disk.
+     */
+    @Override
+    public void insert(Vector vector) {
+        ReentrantLock stripe = stripeFor(vector.id());
+        mutationLock.readLock().lock();
+        stripe.lock();
+        try {
+            checkOpen();
+            wal.appendInsert(vector.id(), vector.vector());
+            if (!index.isBuilt()) {
+                buildFirst(vector);
+            } else {
+                index.insert(vector);
+            }
+        } finally {
+            stripe.unlock();
+            mutationLock.readLock().unlock();
+        }
+    }
+
+    // the first vector of an empty index builds the graph
+    private synchronized void buildFirst(Vector vector) {
+        if (index.isBuilt()) {
+            index.insert(vector);
+        } else {
+            index.build(List.of(vector));
+        }
+    }
+
+    @Override
+    public void delete(String vectorId) {
+        ReentrantLock stripe = stripeFor(vectorId);
+        mutationLock.readLock().lock();
+        stripe.lock();
+        try {
+            checkOpen();
+            wal.appendDelete(vectorId);
+            if (index.isBuilt()) {
+                index.delete(vectorId);
+            }
+        } finally {
+            stripe.unlock();
+            mutationLock.readLock().unlock();
+        }
+    }
+
+    // concurrent inserts share the log's group commit fsyncs
+    @Override
+    public void insertAsync(List<Vector> vectors) {
+        if (insertExecutor == null) {
+            for (Vector v : vectors) {
+                insert(v);
+            }
+            return;
+        }
+        List<CompletableFuture<Void>> futures = vectors.stream()
+                .map(v -> CompletableFuture.runAsync(() -> insert(v), insertExecutor))
+                .toList();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+
+    @Override
+    public int size() {
+        return index.isBuilt() ? index.size() : 0;
+    }
+
+    @Override
+    public List<QueryResult> search(float[] query, int k, String dataset) {
+        return index.isBuilt() ? index.search(query, k, dataset) : new ArrayList<>();
+    }
+
+    @Override
+    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset) {
+        return index.isBuilt() ? index.searchAsync(query, k, dataset)
+                : CompletableFuture.completedFuture(new ArrayList<>());
+    }
+
+    @Override
+    public long getDistanceCalculations() {
+        return index.getDistanceCalculations();
+    }
+
+    @Override
+    public void resetDistanceCalculations() {
+        index.resetDistanceCalculations();
+    }
+
+    @Override
+    public String getName() {
+        return "JVector-HNSW-WAL";
+    }
+
+    // the wrapped index, e.g. for cleanup or a CompactionScheduler; mutate only through this class
+    public JVectorHNSWIndex getIndex() {
+        return index;
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+
+    /**
+     * Stops periodic checkpoints, waits for a running one, then syncs and closes the log. No new
+     * checkpoint is taken.
+     */
+    @Override
+    public void close() throws IOException {
+        checkpointExecutor.shutdown();
+        try {
+            checkpointExecutor.awaitTermination(10, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mutationLock.writeLock().lock();
+        try {
+            if (wal != null) {
+                wal.close();
+                wal = null;
+            }
+        } finally {
+            mutationLock.writeLock().unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (wal == null) {
+            throw new IllegalStateException("Durable index " + directory + " is not open");
+        }
+    }
+
+    private ReentrantLock stripeFor(String id) {
+        int hash = id.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+}
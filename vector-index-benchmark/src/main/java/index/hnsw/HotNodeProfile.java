@@ -0,0 +1,76 @@
+package index.hnsw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counts how often searches touch each node of an on-disk graph, so the hottest nodes of one run
+ * can be saved and read back in by {@link DiskIndexWarmer#replay} after a restart.
+ */
+public class HotNodeProfile {
+    private final AtomicIntegerArray counts;
+
+    public HotNodeProfile(int nodeCount) {
+        this.counts = new AtomicIntegerArray(nodeCount);
+    }
+
+    public void record(int node) {
+        if (node < counts.length()) {
+            counts.incrementAndGet(node);
+        }
+    }
+
+    public int count(int node) {
+        return counts.get(node);
+    }
+
+    /**
+     * Up to maxNodes touched nodes, hottest first.
+     */
+    public int[] hottest(int maxNodes) {
+        // count in the high half, node in the low half, so one sort orders by count
+        long[] keyed = new long[counts.length()];
+        int touched = 0;
+        for (int node = 0; node < counts.length(); node++) {
+            int count = counts.get(node);
+            if (count > 0) {
+                keyed[touched++] = ((long) count << 32) | node;
+            }
+        }
+        Arrays.sort(keyed, 0, touched);
+
+        int[] nodes = new int[Math.min(maxNodes, touched)];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = (int) keyed[touched - 1 - i];
+        }
+        return nodes;
+    }
+
+    // writes the hottest maxNodes nodes as a count followed by the node ids
+    public void save(Path file, int maxNodes) throws IOException {
+        int[] nodes = hottest(maxNodes);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(nodes.length);
+            for (int node : nodes) {
+                out.writeInt(node);
+            }
+        }
+    }
+
+    public static int[] load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int[] nodes = new int[in.readInt()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = in.readInt();
+            }
+            return nodes;
+        }
+    }
+}
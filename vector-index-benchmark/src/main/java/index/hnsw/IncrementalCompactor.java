@@ -0,0 +1,132 @@
+package index.hnsw;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes deleted nodes from a {@link JVectorHNSWIndex} in small time-sliced steps instead of one
+ * blocking cleanup. The index is switched to deferred deletes, so a delete only tombstones and
+ * queues the node; every tick a background thread calls compactStep for the current batch size.
+ * The batch size adapts to a pause budget: it grows additively while steps finish within the
+ * budget and halves when one overruns, so inserts and deletes never wait much longer than
+ * pauseBudgetMs and searches keep running throughout.
+ */
+public class IncrementalCompactor implements AutoCloseable {
+    private final JVectorHNSWIndex index;
+    private final long tickIntervalMs;
+    private final long pauseBudgetMs;
+    private final int batchIncrement;
+    private final ScheduledExecutorService scheduler;
+
+    private int batchSize;
+    private long steps;
+    private long removedNodes;
+    private long totalStepMs;
+    private long maxStepMs;
+
+    public IncrementalCompactor(JVectorHNSWIndex index) {
+        this(index, 100, 20, 64);
+    }
+
+    // initialBatch is also the additive increment of the batch size
+    public IncrementalCompactor(JVectorHNSWIndex index, long tickIntervalMs, long pauseBudgetMs, int initialBatch) {
+        this.index = index;
+        this.tickIntervalMs = tickIntervalMs;
+        this.pauseBudgetMs = pauseBudgetMs;
+        this.batchIncrement = Math.max(1, initialBatch);
+        this.batchSize = batchIncrement;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hnsw-incremental-compaction");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() {
+        index.setDeferredDeletes(true);
+        scheduler.scheduleWithFixedDelay(this::tick, tickIntervalMs, tickIntervalMs, TimeUnit.MILLISECONDS);
+        System.out.println("Incremental compaction started: tick " + tickIntervalMs + " ms, pause budget " + pauseBudgetMs + " ms");
+    }
+
+    // runs steps on the calling thread until the queue is empty
+    public void drain() {
+        while (index.getPendingDeleteCount() > 0) {
+            step();
+        }
+    }
+
+    // stops ticking and switches the index back to immediate deletes, still queued nodes are
+    // marked deleted and left for the next cleanup
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        index.setDeferredDeletes(false);
+    }
+
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    public synchronized long getSteps() {
+        return steps;
+    }
+
+    public synchronized long getRemovedNodes() {
+        return removedNodes;
+    }
+
+    public synchronized long getMaxStepMs() {
+        return maxStepMs;
+    }
+
+    public synchronized double getAverageStepMs() {
+        return steps == 0 ? 0 : (double) totalStepMs / steps;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("IncrementalCompactor{steps=%d, removed=%d, batch=%d, avgStep=%.1fms, maxStep=%dms}",
+                steps, removedNodes, batchSize, getAverageStepMs(), maxStepMs);
+    }
+
+    private void tick() {
+        try {
+            if (index.getPendingDeleteCount() > 0) {
+                step();
+            }
+        } catch (RuntimeException e) {
+            // keep the schedule alive, the next tick retries
+            System.out.println("Incremental compaction step failed: " + e);
+        }
+    }
+
+    private synchronized void step() {
+        long start = System.nanoTime();
+        int removed = index.compactStep(batchSize);
+        long stepMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (removed == 0) {
+            return;
+        }
+
+        steps++;
+        removedNodes += removed;
+        totalStepMs += stepMs;
+        maxStepMs = Math.max(maxStepMs, stepMs);
+
+        // additive increase while within budget, multiplicative decrease on overrun
+        if (stepMs > pauseBudgetMs) {
+            batchSize = Math.max(1, batchSize / 2);
+        } else if (removed == batchSize) {
+            batchSize += batchIncrement;
+        }
+    }
+}
@@ -1,20 +1,29 @@
 package index.hnsw;
 
+import core.IdDictionary;
 import core.QueryResult;
 import core.Vector;
 import core.VectorIndex;
+import core.VectorStore;
+import utils.AtomicBitSet;
+import utils.IntArrayList;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import io.github.jbellis.jvector.graph.*;
 import io.github.jbellis.jvector.graph.similarity.BuildScoreProvider;
 import io.github.jbellis.jvector.graph.similarity.SearchScoreProvider;
+import io.github.jbellis.jvector.util.Bits;
 import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
 import io.github.jbellis.jvector.vector.VectorizationProvider;
 import io.github.jbellis.jvector.vector.types.VectorFloat;
@@ -27,20 +36,46 @@ public class JVectorHNSWIndex implements VectorIndex {
     private int efSearch;
 
     private GraphIndexBuilder builder;
-    private ArrayList<Vector> vectors;
-    private ArrayList<VectorFloat<?>> jvectorVectors;
-    private HashMap<String, Integer> idToNodeMap;
+    // single copy of the vectors, node id == store ordinal; JVector reads it through VectorStoreValues
+    private VectorStore store;
+    private IdDictionary dictionary;
 
     private RandomAccessVectorValues ravv;
     private BuildScoreProvider bsp;
     private int dimension;
     private long distanceCalculations = 0;
 
-    private final AtomicInteger nextNodeId = new AtomicInteger(0);
+    // store appends and id rebinds happen together under this lock, so ordinals are handed out
+    // in store order and an insert and a delete of the same id cannot interleave
+    private final Object ordinalLock = new Object();
+    // insert and delete share the read side; cleanup takes the write side, since JVector's
+    // cleanup must not run concurrently with addGraphNode
+    private final ReadWriteLock structureLock = new ReentrantReadWriteLock();
+
+    // nodes marked deleted since the last cleanup
     private final AtomicInteger softDeleteCount = new AtomicInteger(0);
     private final AtomicInteger liveNodeCount = new AtomicInteger(0);
+    // read by CompactionScheduler to rate-limit cleanup against search load
+    private final LongAdder searchCount = new LongAdder();
     private final ExecutorService insertExecutor;
 
+    // deferred delete mode (see IncrementalCompactor): deletes only tombstone the node and queue
+    // it, searches filter tombstones, and compactStep marks and removes a bounded batch at a time
+    private volatile boolean deferDeletes;
+    private final AtomicBitSet tombstones = new AtomicBitSet();
+    // queued node ids, guarded by itself
+    private final IntArrayList pendingDeletes = new IntArrayList();
+
+    // ordinals of nodes removed from the graph, handed out again lowest first so the free ones
+    // gather at the tail, where they are truncated from the store; guarded by ordinalLock
+    private final BitSet freeOrdinals = new BitSet();
+    // searches share the read side; reclaiming removed ordinals takes the write side, so an
+    // ordinal is only reused once no search that could still reach its old node is running
+    private final ReadWriteLock reclaimLock = new ReentrantReadWriteLock();
+    // while a snapshot scan is pinned, freed ordinals are reused but the store is not truncated;
+    // guarded by ordinalLock
+    private int ordinalPins;
+
     public JVectorHNSWIndex(int m, int efConstruction, int efSearch, ExecutorService insertExecutor) {
         this.m = m;
         this.efConstruction = efConstruction;
@@ -57,26 +92,24 @@ public class JVectorHNSWIndex implements VectorIndex {
         System.out.println("Creating JVector HNSW index with M=" + m + ", efConstruction=" + efConstruction + ", efSearch=" + efSearch);
         System.out.println("Dataset size: " + vectors.size() + " vectors");
 
-        this.vectors = new ArrayList<>(vectors);
         this.dimension = vectors.get(0).dimensions();
         long startTime = System.currentTimeMillis();
 
-        // convert to vector float list
-        this.jvectorVectors = new ArrayList<>();
-        this.idToNodeMap = new HashMap<>();
-        for (int i = 0; i < vectors.size(); i++) {
-            Vector v = vectors.get(i);
-            VectorFloat<?> vf = vts.createFloatVector(v.dimensions());
-            for (int j = 0; j < v.dimensions(); j++) {
-                vf.set(j, v.vector()[j]);
-            }
-            jvectorVectors.add(vf);
-            idToNodeMap.put(v.id(), i);
+        // copy into the contiguous store
+        this.store = new VectorStore(dimension);
+        this.dictionary = new IdDictionary(vectors.size());
+        for (Vector v : vectors) {
+            dictionary.put(v.id(), store.add(v.vector()));
+        }
+        tombstones.clearAll();
+        tombstones.ensureCapacity(store.size());
+        freeOrdinals.clear();
+        synchronized (pendingDeletes) {
+            pendingDeletes.clear();
         }
 
         // create ravv
-        int dimension = vectors.get(0).dimensions();
-        this.ravv = new ListRandomAccessVectorValues(jvectorVectors, dimension);
+        this.ravv = new VectorStoreValues(store);
 
         // build score provider
         this.bsp = BuildScoreProvider.randomAccessScoreProvider(ravv, VectorSimilarityFunction.EUCLIDEAN);
@@ -97,7 +130,6 @@ public class JVectorHNSWIndex implements VectorIndex {
         builder.build(ravv);
 
         // Initialize counters after build
-        this.nextNodeId.set(vectors.size());
         this.liveNodeCount.set(builder.getGraph().size(0));
 
         long totalTime = System.currentTimeMillis() - startTime;
@@ -115,25 +147,41 @@ public class JVectorHNSWIndex implements VectorIndex {
 
     @Override
     public List<QueryResult> search(float[] query, int k, String dataset) {
-        // convert query to vector float
-        VectorFloat<?> queryVector = vts.createFloatVector(query.length);
-        for (int i = 0; i < query.length; i++) {
-            queryVector.set(i, query[i]);
-        }
+        return search(query, k, 0.0F);
+    }
 
+    /**
+     * Search that stops walking the graph once no candidate left scores minScore or more, so results
+     * below it may be missing. Used by fan-out searches with the score other partitions already beat.
+     */
+    public List<QueryResult> search(float[] query, int k, float minScore) {
+        searchCount.increment();
+        // wrap the query, no copy
+        VectorFloat<?> queryVector = vts.createFloatVector(query);
+
+        reclaimLock.readLock().lock();
         try (GraphSearcher searcher = new GraphSearcher(builder.getGraph())) {
             SearchScoreProvider ssp = bsp.searchProviderFor(queryVector);
-            SearchResult result = searcher.search(ssp, k, efSearch, 0.0F, 0.0F, builder.getGraph().getView().liveNodes());
+            Bits acceptOrds = builder.getGraph().getView().liveNodes();
+            if (deferDeletes) {
+                // queued deletes are not marked in the graph yet
+                acceptOrds = Bits.intersectionOf(acceptOrds, node -> !tombstones.get(node));
+            }
+            SearchResult result = searcher.search(ssp, k, efSearch, minScore, 0.0F, acceptOrds);
 
             // convert to our format
             List<QueryResult> results = new ArrayList<>();
             for (SearchResult.NodeScore ns : result.getNodes()) {
-                String id = vectors.get(ns.node).id();
-                results.add(new QueryResult(id, ns.score));
+                QueryResult queryResult = new QueryResult(ns.node, ns.score, dictionary);
+                // resolved before the ordinal can be reused for another id
+                queryResult.getId();
+                results.add(queryResult);
             }
             return results;
         } catch (IOException e) {
             throw new RuntimeException("Search failed", e);
+        } finally {
+            reclaimLock.readLock().unlock();
         }
     }
 
@@ -153,29 +201,41 @@ public class JVectorHNSWIndex implements VectorIndex {
     }
 
     /**
-     * Insert a single vector.
-     * WARNING: This method is NOT thread-safe for concurrent calls.
-     * For concurrent insertions, use insertAsync() with an executor.
+     * Insert a single vector. Safe to call from any number of threads, also while searching.
+     * Only the store append and the id binding are serialized, the graph insertion runs in
+     * parallel. An existing id is rebound to the new node and its old node marked deleted.
+     * Ordinals freed by cleanup are reused before the store grows.
      */
     @Override
     public void insert(Vector vector) {
-        VectorFloat<?> vf = vts.createFloatVector(vector.dimensions());
-        for (int i = 0; i < vector.dimensions(); i++) {
-            vf.set(i, vector.vector()[i]);
+        structureLock.readLock().lock();
+        try {
+            int nodeId;
+            int previous;
+            synchronized (ordinalLock) {
+                previous = dictionary.ordinalOf(vector.id());
+                nodeId = freeOrdinals.nextSetBit(0);
+                if (nodeId >= 0) {
+                    // the old node is out of the graph, no search reads this slot until it is re-added
+                    freeOrdinals.clear(nodeId);
+                    store.set(nodeId, vector.vector());
+                } else {
+                    nodeId = store.add(vector.vector());
+                    tombstones.ensureCapacity(nodeId + 1);
+                }
+                dictionary.put(vector.id(), nodeId);
+            }
+            builder.addGraphNode(nodeId, vts.createFloatVector(vector.vector()));
+            if (previous >= 0) {
+                retire(previous);
+            } else {
+                liveNodeCount.incrementAndGet();
+            }
+        } finally {
+            structureLock.readLock().unlock();
         }
-
-        // Thread-safe operations with concurrent collections
-        int nodeId = nextNodeId.getAndIncrement();
-        vectors.add(vector);
-        jvectorVectors.add(vf);
-        idToNodeMap.put(vector.id(), nodeId);
-        builder.addGraphNode(nodeId, vf);
-        liveNodeCount.incrementAndGet();
     }
 
-    // record to hold insertion data
-    private record InsertTask(int nodeId, VectorFloat<?> vf) {}
-
     @Override
     public void insertAsync(List<Vector> vectors) {
         if (insertExecutor == null) {
@@ -186,25 +246,9 @@ public class JVectorHNSWIndex implements VectorIndex {
             return;
         }
 
-        // sequential preparation
-        List<InsertTask> tasks = new ArrayList<>(vectors.size());
-        for (Vector v : vectors) {
-            VectorFloat<?> vf = vts.createFloatVector(v.dimensions());
-            for (int i = 0; i < v.dimensions(); i++) {
-                vf.set(i,v.vector()[i]);
-            }
-
-            // assign node id and update data structures
-            int nodeId = nextNodeId.getAndIncrement();
-            this.vectors.add(v);
-            this.jvectorVectors.add(vf);
-            idToNodeMap.put(v.id(),nodeId);
-            liveNodeCount.incrementAndGet();
-            tasks.add(new InsertTask(nodeId,vf));
-        }
-        // parallel graph insertion
-        List<CompletableFuture<Void>> futures = tasks.stream()
-                .map(task -> CompletableFuture.runAsync(() -> builder.addGraphNode(task.nodeId, task.vf), insertExecutor))
+        // each task appends, converts and inserts its own vector
+        List<CompletableFuture<Void>> futures = vectors.stream()
+                .map(v -> CompletableFuture.runAsync(() -> insert(v), insertExecutor))
                 .toList();
         CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
     }
@@ -220,20 +264,258 @@ public class JVectorHNSWIndex implements VectorIndex {
 
     @Override
     public void delete(String vectorId) {
-        Integer nodeId = idToNodeMap.get(vectorId);
-        if (nodeId == null) return;
+        structureLock.readLock().lock();
+        try {
+            // unbinding the id makes a repeated delete a no-op
+            int nodeId;
+            synchronized (ordinalLock) {
+                nodeId = dictionary.remove(vectorId);
+            }
+            if (nodeId < 0) return;
 
-        builder.markNodeDeleted(nodeId);
+            retire(nodeId);
+            liveNodeCount.decrementAndGet();
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    // marks the node deleted in the graph, or queues it in deferred delete mode
+    private void retire(int nodeId) {
+        if (deferDeletes) {
+            tombstones.set(nodeId);
+            synchronized (pendingDeletes) {
+                pendingDeletes.add(nodeId);
+            }
+        } else {
+            builder.markNodeDeleted(nodeId);
+        }
         softDeleteCount.incrementAndGet();
-        liveNodeCount.decrementAndGet();
+    }
+
+    /**
+     * Switches deletes to deferred mode: a delete only tombstones and queues the node, and
+     * compactStep removes queued nodes from the graph in bounded batches. Used by IncrementalCompactor.
+     */
+    public void setDeferredDeletes(boolean defer) {
+        structureLock.writeLock().lock();
+        try {
+            if (!defer) {
+                markPendingDeleted(Integer.MAX_VALUE);
+            }
+            this.deferDeletes = defer;
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    public int getPendingDeleteCount() {
+        synchronized (pendingDeletes) {
+            return pendingDeletes.size();
+        }
+    }
+
+    /**
+     * One bounded compaction step: marks up to maxNodes queued deletes in the graph and removes
+     * them, repairing their neighbors. Inserts and deletes wait for the step, searches do not.
+     * The removal still walks the whole graph once to find in-edges, so a step has a fixed cost
+     * on top of the per-node repair work. Returns the number of nodes removed.
+     */
+    public int compactStep(int maxNodes) {
+        structureLock.writeLock().lock();
+        try {
+            IntArrayList marked = markPendingDeleted(maxNodes);
+            if (marked.isEmpty()) {
+                return 0;
+            }
+            builder.removeDeletedNodes();
+            reclaimRemovedOrdinals();
+            // searches running during the removal may still see a node whose deleted flag is
+            // already gone, so the tombstones are only cleared once the nodes are out of the graph
+            for (int i = 0; i < marked.size(); i++) {
+                tombstones.clear(marked.get(i));
+            }
+            softDeleteCount.addAndGet(-marked.size());
+            return marked.size();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Frees the ordinals of nodes removed from the graph for reuse by insert, and truncates a free
+     * tail off the store, releasing its slabs. Waits for running searches first, since they may
+     * still hold a removed node; new searches wait for the scan, which is one pass over the ordinals.
+     * Must hold the structure write lock, so no insert is between its store write and addGraphNode.
+     */
+    private void reclaimRemovedOrdinals() {
+        OnHeapGraphIndex graph = getGraph();
+        reclaimLock.writeLock().lock();
+        try {
+            synchronized (ordinalLock) {
+                int bound = store.size();
+                for (int ordinal = 0; ordinal < bound; ordinal++) {
+                    if (!freeOrdinals.get(ordinal) && !graph.containsNode(ordinal)) {
+                        freeOrdinals.set(ordinal);
+                        dictionary.forget(ordinal);
+                    }
+                }
+
+                int newBound = freeOrdinals.previousClearBit(bound - 1) + 1;
+                if (newBound < bound && ordinalPins == 0) {
+                    store.truncate(newBound);
+                    store.trimToSize();
+                    dictionary.truncate(newBound);
+                    freeOrdinals.clear(newBound, bound);
+                }
+            }
+        } finally {
+            reclaimLock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(String id) {
+        return dictionary.ordinalOf(id) >= 0;
+    }
+
+    /**
+     * Writes the live nodes as an {@link OnDiskHNSWIndex} directory, renumbered to dense ordinals.
+     * Runs cleanup first, so the graph holds exactly the live nodes; inserts and deletes must not
+     * run meanwhile, searches may.
+     */
+    public void writeOnDisk(Path directory, int pqSubspaces) throws IOException {
+        cleanup();
+        structureLock.writeLock().lock();
+        try {
+            OnHeapGraphIndex graph = getGraph();
+            IntArrayList live = new IntArrayList(graph.size(0));
+            for (int ordinal = 0; ordinal < store.size(); ordinal++) {
+                if (graph.containsNode(ordinal)) {
+                    live.add(ordinal);
+                }
+            }
+            OnDiskHNSWIndex.write(directory, graph, new VectorStoreValues(store), live.toArray(),
+                    dictionary::idOf, pqSubspaces);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    @FunctionalInterface
+    interface LiveVectorVisitor {
+        // the vector is dimension floats of slab from offset on, valid during the call only
+        void visit(String id, float[] slab, int offset) throws IOException;
+    }
+
+    /**
+     * Keeps the store from being truncated until unpinOrdinals and returns the current ordinal
+     * bound, so scanLive can read every ordinal below it while inserts and deletes go on.
+     */
+    int pinOrdinals() {
+        synchronized (ordinalLock) {
+            ordinalPins++;
+            return store.size();
+        }
+    }
+
+    void unpinOrdinals() {
+        synchronized (ordinalLock) {
+            ordinalPins--;
+        }
+    }
+
+    /**
+     * Visits the bound ids below a pinned bound with their vectors, without blocking writers.
+     * The walk is fuzzy: an id inserted, deleted or rebound meanwhile may be seen in either state,
+     * or with the vector of the id that now reuses its ordinal. Callers pair it with a log that
+     * redoes every mutation made since the pin.
+     */
+    void scanLive(int bound, LiveVectorVisitor visitor) throws IOException {
+        for (int ordinal = 0; ordinal < bound; ordinal++) {
+            String id = dictionary.idOf(ordinal);
+            if (id != null && dictionary.ordinalOf(id) == ordinal) {
+                visitor.visit(id, store.slab(ordinal), store.offset(ordinal));
+            }
+        }
+    }
+
+    boolean isBuilt() {
+        return builder != null;
+    }
+
+    int getDimension() {
+        return dimension;
+    }
+
+    public int getFreeOrdinalCount() {
+        synchronized (ordinalLock) {
+            return freeOrdinals.cardinality();
+        }
+    }
+
+    // ordinals in use or free, the store holds this many vectors
+    public int getOrdinalBound() {
+        synchronized (ordinalLock) {
+            return store.size();
+        }
+    }
+
+    public long getVectorBytesUsed() {
+        synchronized (ordinalLock) {
+            return store.ramBytesUsed();
+        }
+    }
+
+    // must hold the structure write lock, the tombstones of the marked nodes stay set
+    private IntArrayList markPendingDeleted(int maxNodes) {
+        IntArrayList marked = new IntArrayList();
+        synchronized (pendingDeletes) {
+            while (marked.size() < maxNodes && !pendingDeletes.isEmpty()) {
+                int nodeId = pendingDeletes.removeLast();
+                builder.markNodeDeleted(nodeId);
+                marked.add(nodeId);
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Nodes marked deleted and not yet removed by cleanup.
+     */
+    public int getSoftDeleteCount() {
+        return softDeleteCount.get();
+    }
+
+    /**
+     * Share of graph nodes that are marked deleted, deleted / (live + deleted).
+     */
+    public double getDeletedRatio() {
+        int deleted = softDeleteCount.get();
+        int total = deleted + liveNodeCount.get();
+        return total == 0 ? 0 : (double) deleted / total;
+    }
+
+    public long getSearchCount() {
+        return searchCount.sum();
     }
 
     /**
      * Cleanup deleted nodes - blocking compaction operation.
      * Call periodically when delete percentage gets too high.
+     * Waits for running inserts and deletes and holds new ones back until done; searches continue.
      */
     public void cleanup() {
-        builder.cleanup();
-        liveNodeCount.set(builder.getGraph().size(0));
+        structureLock.writeLock().lock();
+        try {
+            markPendingDeleted(Integer.MAX_VALUE);
+            builder.cleanup();
+            // every marked node is out of the graph now
+            tombstones.clearAll();
+            reclaimRemovedOrdinals();
+            liveNodeCount.set(builder.getGraph().size(0));
+            softDeleteCount.set(0);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
     }
 }
@@ -14,7 +14,9 @@ import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 public class JelmarkHNSWIndex implements VectorIndex {
@@ -22,21 +24,32 @@ public class JelmarkHNSWIndex implements VectorIndex {
     private final int efConstruction;
     private final int efSearch;
     private HnswIndex<String, float[], Vector, Float> index;
-    private long distanceCalculations = 0;
+    // bumped from every insert and search thread, striped to avoid contention on one counter
+    private final LongAdder distanceCalculations = new LongAdder();
+    private final DistanceMetric metric = DistanceMetric.EUCLIDEAN;
     private final DistanceFunction<float[], Float> distanceFunction;
     private final AtomicLong versionCounter = new AtomicLong(0);
     private final ExecutorService insertExecutor;
+    // number of threads adding vectors in build, 1 builds sequentially
+    private final int buildParallelism;
 
     // constructor with executor service
     public JelmarkHNSWIndex(int m, int efConstruction, int efSearch, ExecutorService insertExecutor) {
+        this(m, efConstruction, efSearch, insertExecutor, 1);
+    }
+
+    // buildParallelism > 1 builds on the shared BenchmarkExecutors pool with that many workers
+    public JelmarkHNSWIndex(int m, int efConstruction, int efSearch, ExecutorService insertExecutor, int buildParallelism) {
         this.m = m;
         this.efConstruction = efConstruction;
         this.efSearch = efSearch;
         this.insertExecutor = insertExecutor;
+        this.buildParallelism = Math.max(1, buildParallelism);
 
         this.distanceFunction = (vector1, vector2) -> {
-            distanceCalculations++;
-            return new DistanceMetric().euclideanDistance(vector1, vector2);
+            distanceCalculations.increment();
+            // the graph only compares distances, so squared L2 keeps the same ordering
+            return metric.compare(vector1, vector2);
         };
     }
 
@@ -63,8 +76,12 @@ public class JelmarkHNSWIndex implements VectorIndex {
         System.out.println("Index structure created, now adding vectors...");
 
         // Add all vectors to index with progress tracking
-        for (Vector vector : vectors) {
-            index.add(vector);
+        if (buildParallelism > 1) {
+            addInParallel(vectors);
+        } else {
+            for (Vector vector : vectors) {
+                index.add(vector);
+            }
         }
 
         long totalTime = System.currentTimeMillis() - startTime;
@@ -85,7 +102,7 @@ public class JelmarkHNSWIndex implements VectorIndex {
 
         List<QueryResult> searchResults = new ArrayList<>();
         for (SearchResult<Vector, Float> result : results) {
-            searchResults.add(new QueryResult(result.item().id(), result.distance()));
+            searchResults.add(new QueryResult(result.item().id(), metric.toDistance(result.distance())));
         }
 
         return searchResults;
@@ -93,12 +110,12 @@ public class JelmarkHNSWIndex implements VectorIndex {
 
     @Override
     public long getDistanceCalculations() {
-        return distanceCalculations;
+        return distanceCalculations.sum();
     }
 
     @Override
     public void resetDistanceCalculations() {
-        this.distanceCalculations = 0;
+        distanceCalculations.reset();
     }
 
     @Override
@@ -125,6 +142,7 @@ public class JelmarkHNSWIndex implements VectorIndex {
             for (Vector v : vectors) {
                 insert(v);
             }
+            return;
         }
 
         // parallel insertion
@@ -142,6 +160,68 @@ public class JelmarkHNSWIndex implements VectorIndex {
 
     @Override
     public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset) {
-        return null;
+        if (insertExecutor == null) {
+            return CompletableFuture.completedFuture(search(query, k, dataset));
+        }
+        return CompletableFuture.supplyAsync(() -> search(query, k, dataset), insertExecutor);
+    }
+
+    // results in query order; with an executor the queries are split into one batch per
+    // submitted task instead of one task per query
+    public List<List<QueryResult>> searchMany(float[][] queries, int k) {
+        List<List<QueryResult>> results = new ArrayList<>(queries.length);
+        if (insertExecutor == null) {
+            for (float[] query : queries) {
+                results.add(search(query, k, null));
+            }
+            return results;
+        }
+
+        int batches = Math.min(queries.length, Runtime.getRuntime().availableProcessors() * 4);
+        int batchSize = (queries.length + batches - 1) / Math.max(1, batches);
+        List<CompletableFuture<List<List<QueryResult>>>> futures = new ArrayList<>();
+        for (int from = 0; from < queries.length; from += batchSize) {
+            int start = from;
+            int end = Math.min(queries.length, from + batchSize);
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                List<List<QueryResult>> batch = new ArrayList<>(end - start);
+                for (int i = start; i < end; i++) {
+                    batch.add(search(queries[i], k, null));
+                }
+                return batch;
+            }, insertExecutor));
+        }
+        for (CompletableFuture<List<List<QueryResult>>> future : futures) {
+            results.addAll(future.join());
+        }
+        return results;
+    }
+
+    // buildParallelism workers on the shared pool pull vectors from one cursor, hnswlib's add is
+    // safe for concurrent use; progress is printed every 10%
+    private void addInParallel(List<Vector> vectors) {
+        ExecutorService executor = BenchmarkExecutors.getBatchInsertExecutor();
+        int total = vectors.size();
+        int reportEvery = Math.max(1, total / 10);
+        AtomicInteger cursor = new AtomicInteger();
+        AtomicInteger added = new AtomicInteger();
+        long startTime = System.currentTimeMillis();
+        System.out.println("Adding vectors with " + buildParallelism + " workers...");
+
+        List<CompletableFuture<Void>> workers = new ArrayList<>(buildParallelism);
+        for (int w = 0; w < buildParallelism; w++) {
+            workers.add(CompletableFuture.runAsync(() -> {
+                int i;
+                while ((i = cursor.getAndIncrement()) < total) {
+                    index.add(vectors.get(i));
+                    int done = added.incrementAndGet();
+                    if (done % reportEvery == 0 || done == total) {
+                        double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+                        System.out.printf("Added %d/%d vectors (%.0f vectors/s)\n", done, total, done / Math.max(seconds, 0.001));
+                    }
+                }
+            }, executor));
+        }
+        CompletableFuture.allOf(workers.toArray(new CompletableFuture[0])).join();
     }
 }
@@ -0,0 +1,531 @@
+package index.hnsw;
+
+import core.IdDictionary;
+import core.QueryResult;
+import core.Vector;
+import core.VectorIndex;
+import core.VectorStore;
+import utils.AtomicBitSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+
+import io.github.jbellis.jvector.disk.ReaderSupplier;
+import io.github.jbellis.jvector.disk.ReaderSupplierFactory;
+import io.github.jbellis.jvector.disk.SimpleWriter;
+import io.github.jbellis.jvector.graph.GraphIndexBuilder;
+import io.github.jbellis.jvector.graph.GraphSearcher;
+import io.github.jbellis.jvector.graph.ImmutableGraphIndex;
+import io.github.jbellis.jvector.graph.RandomAccessVectorValues;
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
+import io.github.jbellis.jvector.graph.similarity.BuildScoreProvider;
+import io.github.jbellis.jvector.graph.similarity.DefaultSearchScoreProvider;
+import io.github.jbellis.jvector.graph.similarity.ScoreFunction;
+import io.github.jbellis.jvector.quantization.CompressedVectors;
+import io.github.jbellis.jvector.quantization.ImmutablePQVectors;
+import io.github.jbellis.jvector.quantization.ProductQuantization;
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+/**
+ * Serves a JVector graph from disk: the graph with its inline full precision vectors stays in the
+ * mapped file, only the PQ codes and the id table are on the heap.
+ *
+ * A search walks the graph scoring candidates with PQ, then re-ranks the candidate list against the
+ * inline vectors, so RAM is PQ codes plus whatever the page cache keeps of the graph file.
+ *
+ * The directory holds graph.jv, pq.bin and ids.bin, written by build(). The index is read-only
+ * apart from deletes, which live in an in-memory bitset and are gone after reopening.
+ */
+public class OnDiskHNSWIndex implements VectorIndex, AutoCloseable {
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+    private static final VectorSimilarityFunction SIMILARITY = VectorSimilarityFunction.EUCLIDEAN;
+
+    static final String GRAPH_FILE = "graph.jv";
+    static final String PQ_FILE = "pq.bin";
+    static final String IDS_FILE = "ids.bin";
+
+    private final Path directory;
+    private final int m;
+    private final int efConstruction;
+    private final int pqSubspaces;
+    private volatile int efSearch;
+
+    // open() and close() take the write side, searches and deletes the read side
+    private final ReadWriteLock lifecycleLock = new ReentrantReadWriteLock();
+    private ReaderSupplier readerSupplier;
+    private OnDiskGraphIndex graph;
+    private CompressedVectors pqVectors;
+    private IdDictionary dictionary;
+    private AtomicBitSet deleted;
+    private final AtomicInteger liveCount = new AtomicInteger();
+    // nodes visited by searches, each costs one PQ distance
+    private final LongAdder distanceCalculations = new LongAdder();
+    // when set, searches count the nodes they consider, see warmUp
+    private volatile HotNodeProfile hotNodeProfile;
+
+    /**
+     * @param efSearch    size of the PQ scored candidate list; every candidate is re-ranked exactly
+     * @param pqSubspaces number of PQ subspaces, must divide the dimension
+     */
+    public OnDiskHNSWIndex(Path directory, int m, int efConstruction, int efSearch, int pqSubspaces) {
+        this.directory = directory;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.pqSubspaces = pqSubspaces;
+    }
+
+    /**
+     * Opens an index written earlier by build() or write().
+     */
+    public static OnDiskHNSWIndex load(Path directory, int efSearch) throws IOException {
+        OnDiskHNSWIndex index = new OnDiskHNSWIndex(directory, 0, 0, efSearch, 0);
+        index.open();
+        return index;
+    }
+
+    /**
+     * Builds the graph on heap, trains and encodes PQ, writes everything to the directory and
+     * reopens from there. The on-heap graph and the vectors are dropped once written.
+     */
+    @Override
+    public void build(List<Vector> vectors) {
+        System.out.println("Creating JVector on-disk index with M=" + m + ", efConstruction=" + efConstruction
+                + ", efSearch=" + efSearch + ", PQ subspaces=" + pqSubspaces);
+        System.out.println("Dataset size: " + vectors.size() + " vectors");
+        long startTime = System.currentTimeMillis();
+
+        close();
+        VectorStore store = VectorStore.of(vectors);
+        RandomAccessVectorValues ravv = new VectorStoreValues(store);
+        BuildScoreProvider bsp = BuildScoreProvider.randomAccessScoreProvider(ravv, SIMILARITY);
+        GraphIndexBuilder builder = new GraphIndexBuilder(bsp, store.dimension(), m, efConstruction,
+                1.2f, 1.2f, true, false);
+        builder.build(ravv);
+        System.out.printf("Graph built in %.2fs, writing to %s\n",
+                (System.currentTimeMillis() - startTime) / 1000.0, directory);
+
+        try {
+            write(directory, builder.getGraph(), ravv, null, ordinal -> vectors.get(ordinal).id(), pqSubspaces);
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Writing on-disk index failed", e);
+        }
+
+        long totalTime = System.currentTimeMillis() - startTime;
+        System.out.printf("Build completed in %.2fs\n", totalTime / 1000.0);
+    }
+
+    /**
+     * Writes a graph as an on-disk index directory. newToOld lists the graph nodes to keep in their
+     * new, dense order (null keeps every node as is); vectors and idOf are addressed by graph node.
+     */
+    static void write(Path directory, ImmutableGraphIndex graph, RandomAccessVectorValues vectors,
+                      int[] newToOld, IntFunction<String> idOf, int pqSubspaces) throws IOException {
+        Files.createDirectories(directory);
+        Map<Integer, Integer> oldToNew = new HashMap<>();
+        if (newToOld == null) {
+            newToOld = new int[vectors.size()];
+            for (int i = 0; i < newToOld.length; i++) {
+                newToOld[i] = i;
+            }
+        }
+        for (int i = 0; i < newToOld.length; i++) {
+            oldToNew.put(newToOld[i], i);
+        }
+
+        // graph with INLINE_VECTORS, renumbered to the new ordinals
+        OnDiskGraphIndex.write(graph, vectors, oldToNew, directory.resolve(GRAPH_FILE));
+
+        // PQ codes in new ordinal order, small segments get fewer codewords than vectors
+        RandomAccessVectorValues renumbered = new RenumberedValues(vectors, newToOld);
+        ProductQuantization pq = ProductQuantization.compute(renumbered, pqSubspaces,
+                Math.min(256, newToOld.length), false);
+        try (SimpleWriter out = new SimpleWriter(directory.resolve(PQ_FILE))) {
+            pq.encodeAll(renumbered).write(out);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(directory.resolve(IDS_FILE))))) {
+            out.writeInt(newToOld.length);
+            for (int oldOrdinal : newToOld) {
+                out.writeUTF(idOf.apply(oldOrdinal));
+            }
+        }
+    }
+
+    /**
+     * Maps the graph file and loads PQ codes and ids. Deletes made before are dropped.
+     */
+    public void open() throws IOException {
+        lifecycleLock.writeLock().lock();
+        try {
+            closeFiles();
+            ReaderSupplier supplier = ReaderSupplierFactory.open(directory.resolve(GRAPH_FILE));
+            try {
+                OnDiskGraphIndex loadedGraph = OnDiskGraphIndex.load(supplier);
+
+                CompressedVectors loadedPq;
+                try (ReaderSupplier pqSupplier = ReaderSupplierFactory.open(directory.resolve(PQ_FILE));
+                     var reader = pqSupplier.get()) {
+                    loadedPq = ImmutablePQVectors.load(reader);
+                }
+
+                IdDictionary ids;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        Files.newInputStream(directory.resolve(IDS_FILE))))) {
+                    int count = in.readInt();
+                    ids = new IdDictionary(count);
+                    for (int ordinal = 0; ordinal < count; ordinal++) {
+                        ids.put(in.readUTF(), ordinal);
+                    }
+                }
+
+                this.readerSupplier = supplier;
+                this.graph = loadedGraph;
+                this.pqVectors = loadedPq;
+                this.dictionary = ids;
+                this.deleted = new AtomicBitSet();
+                deleted.ensureCapacity(ids.size());
+                this.liveCount.set(ids.boundCount());
+            } catch (IOException | RuntimeException e) {
+                supplier.close();
+                throw e;
+            }
+        } finally {
+            lifecycleLock.writeLock().unlock();
+        }
+    }
+
+    public boolean isOpen() {
+        lifecycleLock.readLock().lock();
+        try {
+            return graph != null;
+        } finally {
+            lifecycleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Unmaps the graph and drops the heap state; waits for running searches.
+     */
+    @Override
+    public void close() {
+        lifecycleLock.writeLock().lock();
+        try {
+            closeFiles();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Closing on-disk index failed", e);
+        } finally {
+            lifecycleLock.writeLock().unlock();
+        }
+    }
+
+    // must hold the lifecycle write lock
+    private void closeFiles() throws IOException {
+        if (graph == null) return;
+        try {
+            graph.close();
+            readerSupplier.close();
+        } finally {
+            graph = null;
+            readerSupplier = null;
+            pqVectors = null;
+            dictionary = null;
+            deleted = null;
+            liveCount.set(0);
+        }
+    }
+
+    @Override
+    public int size() {
+        return liveCount.get();
+    }
+
+    @Override
+    public List<QueryResult> search(float[] query, int k, String dataset) {
+        return search(query, k, 0.0F);
+    }
+
+    /**
+     * Search that stops walking the graph once no candidate left scores minScore or more, so results
+     * below it may be missing. Used by fan-out searches with the score other partitions already beat;
+     * the walk is steered by PQ scores, so the cut is on approximate scores.
+     */
+    public List<QueryResult> search(float[] query, int k, float minScore) {
+        lifecycleLock.readLock().lock();
+        try {
+            checkOpen();
+            // wrap the query, no copy
+            VectorFloat<?> queryVector = vts.createFloatVector(query);
+            AtomicBitSet deletedNodes = deleted;
+            Bits acceptOrds = node -> !deletedNodes.get(node);
+            HotNodeProfile profile = hotNodeProfile;
+            if (profile != null) {
+                // the searcher asks for every candidate it considers adding to the results
+                Bits accept = acceptOrds;
+                acceptOrds = node -> {
+                    profile.record(node);
+                    return accept.get(node);
+                };
+            }
+
+            // one view per search, the graph file is read through it
+            try (GraphSearcher searcher = new GraphSearcher(graph)) {
+                // PQ scores steer the walk, the candidates are re-ranked against the inline vectors
+                ScoreFunction.ApproximateScoreFunction asf = pqVectors.precomputedScoreFunctionFor(queryVector, SIMILARITY);
+                ScoreFunction.ExactScoreFunction reranker =
+                        ((ImmutableGraphIndex.ScoringView) searcher.getView()).rerankerFor(queryVector, SIMILARITY);
+                SearchResult result = searcher.search(new DefaultSearchScoreProvider(asf, reranker),
+                        k, Math.max(k, efSearch), minScore, 0.0F, acceptOrds);
+                distanceCalculations.add(result.getVisitedCount());
+
+                List<QueryResult> results = new ArrayList<>();
+                for (SearchResult.NodeScore ns : result.getNodes()) {
+                    results.add(new QueryResult(ns.node, ns.score, dictionary));
+                }
+                return results;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Search failed", e);
+            }
+        } finally {
+            lifecycleLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getDistanceCalculations() {
+        return distanceCalculations.sum();
+    }
+
+    @Override
+    public void resetDistanceCalculations() {
+        distanceCalculations.reset();
+    }
+
+    @Override
+    public String getName() {
+        return "JVector-OnDisk";
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    /**
+     * The graph file is immutable, rebuild to add vectors.
+     */
+    @Override
+    public void insert(Vector vector) {
+        throw new UnsupportedOperationException("On-disk index is read-only, rebuild it to add vectors");
+    }
+
+    @Override
+    public void insertAsync(List<Vector> vectors) {
+        throw new UnsupportedOperationException("On-disk index is read-only, rebuild it to add vectors");
+    }
+
+    // unbinds the id and hides its node from searches, the graph file is not touched
+    @Override
+    public void delete(String vectorId) {
+        lifecycleLock.readLock().lock();
+        try {
+            checkOpen();
+            int ordinal = dictionary.remove(vectorId);
+            if (ordinal < 0) return;
+            deleted.set(ordinal);
+            liveCount.decrementAndGet();
+        } finally {
+            lifecycleLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset) {
+        return CompletableFuture.supplyAsync(() -> search(query, k, dataset));
+    }
+
+    // ids written to the graph file, live or deleted
+    public int nodeCount() {
+        lifecycleLock.readLock().lock();
+        try {
+            checkOpen();
+            return dictionary.size();
+        } finally {
+            lifecycleLock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String id) {
+        lifecycleLock.readLock().lock();
+        try {
+            checkOpen();
+            return dictionary.ordinalOf(id) >= 0;
+        } finally {
+            lifecycleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads every live vector back from the inline vectors of the graph file, in ordinal order.
+     */
+    public void forEachLive(BiConsumer<String, float[]> consumer) {
+        lifecycleLock.readLock().lock();
+        try {
+            checkOpen();
+            try (var view = graph.getView()) {
+                for (int ordinal = 0; ordinal < dictionary.size(); ordinal++) {
+                    String id = dictionary.idOf(ordinal);
+                    // a concurrent delete unbinds the id before it sets the bit
+                    if (id == null || deleted.get(ordinal)) continue;
+                    VectorFloat<?> vector = view.getVector(ordinal);
+                    float[] copy = new float[vector.length()];
+                    for (int j = 0; j < copy.length; j++) {
+                        copy[j] = vector.get(j);
+                    }
+                    consumer.accept(id, copy);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Reading vectors failed", e);
+            }
+        } finally {
+            lifecycleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Heap held while open: the graph's in-memory structures, PQ codes and codebooks.
+     */
+    public long ramBytesUsed() {
+        lifecycleLock.readLock().lock();
+        try {
+            return graph == null ? 0 : graph.ramBytesUsed() + pqVectors.ramBytesUsed();
+        } finally {
+            lifecycleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Starts counting the nodes searches touch, for saveHotNodeProfile.
+     */
+    public void recordHotNodes() {
+        lifecycleLock.readLock().lock();
+        try {
+            checkOpen();
+            hotNodeProfile = new HotNodeProfile(graph.getIdUpperBound());
+        } finally {
+            lifecycleLock.readLock().unlock();
+        }
+    }
+
+    public void saveHotNodeProfile(Path file, int maxNodes) throws IOException {
+        HotNodeProfile profile = hotNodeProfile;
+        if (profile == null) {
+            throw new IllegalStateException("Hot node recording was not started");
+        }
+        profile.save(file, maxNodes);
+    }
+
+    /**
+     * Pulls what the first searches read into the page cache: the upper layers, the entry point's
+     * neighborhood and, if profileFile exists, the hot nodes saved by an earlier run.
+     */
+    public List<DiskIndexWarmer.WarmupStats> warmUp(Path profileFile, int neighborhoodNodes) throws IOException {
+        lifecycleLock.readLock().lock();
+        try {
+            checkOpen();
+            DiskIndexWarmer warmer = new DiskIndexWarmer(graph);
+            List<DiskIndexWarmer.WarmupStats> stats = new ArrayList<>();
+            stats.add(warmer.warmUpperLayers());
+            stats.add(warmer.warmEntryNeighborhood(neighborhoodNodes));
+            if (profileFile != null && Files.exists(profileFile)) {
+                stats.add(warmer.replay(HotNodeProfile.load(profileFile)));
+            }
+            for (DiskIndexWarmer.WarmupStats stat : stats) {
+                System.out.println("Warmup " + stat);
+            }
+            return stats;
+        } finally {
+            lifecycleLock.readLock().unlock();
+        }
+    }
+
+    public long diskBytesUsed() throws IOException {
+        return Files.size(directory.resolve(GRAPH_FILE)) + Files.size(directory.resolve(PQ_FILE))
+                + Files.size(directory.resolve(IDS_FILE));
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private void checkOpen() {
+        if (graph == null) {
+            throw new IllegalStateException("On-disk index " + directory + " is not open");
+        }
+    }
+
+    /**
+     * Vectors in new ordinal order, read from the graph ordinals they replace.
+     */
+    private static class RenumberedValues implements RandomAccessVectorValues {
+        private final RandomAccessVectorValues vectors;
+        private final int[] newToOld;
+
+        RenumberedValues(RandomAccessVectorValues vectors, int[] newToOld) {
+            this.vectors = vectors;
+            this.newToOld = newToOld;
+        }
+
+        @Override
+        public int size() {
+            return newToOld.length;
+        }
+
+        @Override
+        public int dimension() {
+            return vectors.dimension();
+        }
+
+        @Override
+        public VectorFloat<?> getVector(int node) {
+            return vectors.getVector(newToOld[node]);
+        }
+
+        @Override
+        public boolean isValueShared() {
+            return vectors.isValueShared();
+        }
+
+        @Override
+        public RandomAccessVectorValues copy() {
+            return new RenumberedValues(vectors.copy(), newToOld);
+        }
+    }
+}
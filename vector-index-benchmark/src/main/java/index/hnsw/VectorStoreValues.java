@@ -0,0 +1,53 @@
+package index.hnsw;
+
+import core.VectorStore;
+import io.github.jbellis.jvector.graph.RandomAccessVectorValues;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+/**
+ * Exposes a {@link VectorStore} to JVector without keeping a second copy of every vector.
+ * getVector() copies the slab slice into a buffer owned by this view, so values are shared:
+ * JVector calls copy() to get one view per thread (see RandomAccessVectorValues.threadLocalSupplier).
+ */
+class VectorStoreValues implements RandomAccessVectorValues {
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+
+    private final VectorStore store;
+    private final float[] buffer;
+    private final VectorFloat<?> bufferVector;
+
+    VectorStoreValues(VectorStore store) {
+        this.store = store;
+        this.buffer = new float[store.dimension()];
+        // wraps the buffer, no copy
+        this.bufferVector = vts.createFloatVector(buffer);
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public int dimension() {
+        return store.dimension();
+    }
+
+    @Override
+    public VectorFloat<?> getVector(int node) {
+        store.copyInto(node, buffer);
+        return bufferVector;
+    }
+
+    @Override
+    public boolean isValueShared() {
+        return true;
+    }
+
+    @Override
+    public RandomAccessVectorValues copy() {
+        return new VectorStoreValues(store);
+    }
+}
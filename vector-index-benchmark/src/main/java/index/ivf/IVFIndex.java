@@ -1,25 +1,95 @@
 package index.ivf;
 
 import core.*;
+import utils.IntArrayList;
+import utils.SharedTopK;
+import utils.TopKSelector;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class IVFIndex implements VectorIndex {
+    // a list is compacted once this share of its entries are tombstones
+    private static final double COMPACTION_THRESHOLD = 0.25;
+    // a list is split in two once it holds this many times the average live list size
+    private static final double SPLIT_FACTOR = 2.0;
+    // a centroid is moved to its members' mean once the mean drifted this share of the
+    // distance to the closest other centroid
+    private static final double DRIFT_THRESHOLD = 0.25;
+    // the drift check runs after this many mutations, or 10% of the live vectors if more
+    private static final int MIN_MUTATIONS_PER_CHECK = 1000;
+    // members used to train the 2-means of a split
+    private static final int MAX_SPLIT_SAMPLE = 4096;
+
     private final int nList;
     private final int nProbe;
+    private final int trainingThreads;
+    private final int miniBatchSize;
+    // centroids are trained with euclidean k-means, so lists are scanned with the same metric
+    private final DistanceMetric metric = DistanceMetric.EUCLIDEAN;
+    // runs insertAsync and searchAsync, may be null
+    private final ExecutorService executor;
+    // scans the probed lists of one search on the executor, sequentially without one
+    private final FanOutSearch fanOut;
+
+    // searches share the read lock, mutations and rebalancing take the write lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // vectors by ordinal, the lists built by build() are contiguous in it, later inserts are appended
+    private VectorStore store;
+    private IdDictionary dictionary;
+    // one centroid per list, splits append new ones
+    private VectorStore centroids;
+    // bumped whenever a centroid moves or is added, so inserts can detect a stale assignment
+    private int centroidsVersion;
+    private List<IntArrayList> invertedLists;
+    // tombstone count and sum of the live member vectors per list, for compaction and drift
+    private IntArrayList deadCounts;
+    private List<double[]> memberSums;
+    // list by ordinal, ordinals stay in the store after delete and are marked in deleted
+    private IntArrayList listOf;
+    private BitSet deleted;
+    private int liveCount;
 
-    private KMeans kMeans;
-    private List<List<Vector>> invertedLists;
-    private long distanceCalculations = 0;
+    private final ExecutorService maintenanceExecutor;
+    private final AtomicBoolean maintenanceScheduled = new AtomicBoolean();
+    private int mutationsSinceCheck;
+    private final LongAdder distanceCalculations = new LongAdder();
 
     public IVFIndex(int nList, int nProbe) {
+        this(nList, nProbe, Runtime.getRuntime().availableProcessors(), 0);
+    }
+
+    // trainingThreads and miniBatchSize are passed to KMeans, see its constructor
+    public IVFIndex(int nList, int nProbe, int trainingThreads, int miniBatchSize) {
+        this(nList, nProbe, trainingThreads, miniBatchSize, null);
+    }
+
+    public IVFIndex(int nList, int nProbe, ExecutorService executor) {
+        this(nList, nProbe, Runtime.getRuntime().availableProcessors(), 0, executor);
+    }
+
+    public IVFIndex(int nList, int nProbe, int trainingThreads, int miniBatchSize, ExecutorService executor) {
         this.nList = nList;
         this.nProbe = nProbe;
+        this.trainingThreads = trainingThreads;
+        this.miniBatchSize = miniBatchSize;
+        this.executor = executor;
+        this.fanOut = new FanOutSearch(executor, Runtime.getRuntime().availableProcessors());
+        this.maintenanceExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "ivf-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
     }
+
     @Override
     public void build(List<Vector> vectors) {
         System.out.println("Building IVF index with nList = " + nList + " and nProbe = " + nProbe);
@@ -27,20 +97,44 @@ public class IVFIndex implements VectorIndex {
 
         long startTime = System.currentTimeMillis();
         // run k-means clustering
-        kMeans = new KMeans(nList, 20);
+        KMeans kMeans = new KMeans(nList, 20, trainingThreads, miniBatchSize);
         kMeans.fit(vectors);
 
-        // initialize inverted lists
-        invertedLists = new ArrayList<>();
+        // assign each vector to its nearest cluster
+        System.out.println("Populating inverted lists...");
+        int[] assignments = kMeans.assign(vectors);
+        List<IntArrayList> members = new ArrayList<>(nList);
         for (int i = 0; i < nList; i++) {
-            invertedLists.add(new ArrayList<>());
+            members.add(new IntArrayList());
+        }
+        for (int i = 0; i < assignments.length; i++) {
+            members.get(assignments[i]).add(i);
         }
 
-        // assign each vector to its nearest cluster
-        System.out.println("Populating inverted lists...");
-        for (Vector v : vectors) {
-            int clusterId = kMeans.findNearestCentroid(v.vector());
-            invertedLists.get(clusterId).add(v);
+        lock.writeLock().lock();
+        try {
+            int dimension = vectors.get(0).dimensions();
+            this.centroids = VectorStore.of(kMeans.getCentroids());
+            this.centroidsVersion++;
+
+            // copy vectors into the store list by list, so scanning one list is a sequential read
+            this.store = new VectorStore(dimension);
+            this.dictionary = new IdDictionary(vectors.size());
+            this.listOf = new IntArrayList(vectors.size());
+            this.deleted = new BitSet();
+            this.invertedLists = new ArrayList<>(nList);
+            this.deadCounts = new IntArrayList(nList);
+            this.memberSums = new ArrayList<>(nList);
+            this.liveCount = 0;
+            this.mutationsSinceCheck = 0;
+            for (IntArrayList member : members) {
+                int listId = addList(Math.max(1, member.size()));
+                for (int i = 0; i < member.size(); i++) {
+                    append(vectors.get(member.get(i)), listId);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
 
         // print cluster stats
@@ -51,46 +145,71 @@ public class IVFIndex implements VectorIndex {
 
     @Override
     public int size() {
-        int total = 0;
-        for (List<Vector> list : invertedLists) {
-            total += list.size();
+        lock.readLock().lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.readLock().unlock();
         }
-        return total;
     }
 
     @Override
     public List<QueryResult> search(float[] query, int k, String dataset) {
+        lock.readLock().lock();
+        try {
+            // find nProbe nearest centroids (coarse search)
+            TopKSelector nearestLists = nearestLists(query, nProbe);
+            distanceCalculations.add(centroids.size());
 
-        // find nProbe nearest centroids (coarse search)
-        List<Integer> nearestCluster = kMeans.findNearestCentroids(query,nProbe);
-        distanceCalculations+=nList;
+            // scan the selected clusters in parallel, nearest first so the shared bound tightens early;
+            // the scans run under this read lock, the fan-out returns only after all of them
+            TopKSelector topK = fanOut.search(nearestLists.size(), k,
+                    (p, shared) -> scanList(invertedLists.get(nearestLists.ordinalAt(p)), query, k, shared)).result();
 
-        // collect all candidates from selected clusters
-        List<QueryResult> candidates = new ArrayList<>();
-        for (int clusterId : nearestCluster) {
-            List<Vector> vectorsInCluster = invertedLists.get(clusterId);
-            // brute force
-            for (Vector v : vectorsInCluster) {
-                float distance = new DistanceMetric().euclideanDistance(query, v.vector());
-                candidates.add(new QueryResult(v.id(),distance));
-                distanceCalculations++;
+            List<QueryResult> results = new ArrayList<>(topK.size());
+            for (int i = 0; i < topK.size(); i++) {
+                results.add(new QueryResult(topK.ordinalAt(i), metric.toDistance(topK.scoreAt(i)), dictionary));
             }
+            return results;
+        } finally {
+            lock.readLock().unlock();
         }
-        // sort candidates by distance and return top k
-        Collections.sort(candidates);
+    }
 
-        int returnSize = Math.min(k, candidates.size());
-        return candidates.subList(0,returnSize);
+    // brute force over one list, skipping tombstones that were not compacted away yet and
+    // candidates that already lose to the shared bound; must hold the read lock
+    private void scanList(IntArrayList ordinalsInCluster, float[] query, int k, SharedTopK shared) {
+        TopKSelector topK = new TopKSelector(k);
+        float bound = shared.bound();
+        long calculations = 0;
+        for (int i = 0; i < ordinalsInCluster.size(); i++) {
+            int ordinal = ordinalsInCluster.get(i);
+            if (deleted.get(ordinal)) continue;
+            float score = store.compare(metric, query, ordinal);
+            calculations++;
+            if (score < bound) {
+                topK.offer(ordinal, score);
+            }
+            // refresh the bound now and then, other lists may have tightened it
+            if ((i & 255) == 255) {
+                if (topK.isFull()) {
+                    shared.tighten(topK.threshold());
+                }
+                bound = shared.bound();
+            }
+        }
+        distanceCalculations.add(calculations);
+        shared.merge(topK);
     }
 
     @Override
     public long getDistanceCalculations() {
-        return distanceCalculations;
+        return distanceCalculations.sum();
     }
 
     @Override
     public void resetDistanceCalculations() {
-        distanceCalculations = 0;
+        distanceCalculations.reset();
     }
 
     @Override
@@ -98,24 +217,302 @@ public class IVFIndex implements VectorIndex {
         return "IVF Index";
     }
 
+    // appends the vector to the list of its nearest centroid, an existing id is replaced;
+    // the O(nList) centroid scan runs under the read lock so concurrent inserts overlap on it
     @Override
     public void insert(Vector vector) {
+        int listId;
+        int version;
+        lock.readLock().lock();
+        try {
+            listId = nearestList(vector.vector());
+            version = centroidsVersion;
+        } finally {
+            lock.readLock().unlock();
+        }
 
+        lock.writeLock().lock();
+        try {
+            if (version != centroidsVersion) {
+                // a rebalance moved centroids in between
+                listId = nearestList(vector.vector());
+            }
+            remove(vector.id());
+            append(vector, listId);
+            mutationsSinceCheck++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        maybeScheduleMaintenance();
     }
 
+    // tombstones the ordinal, the list is compacted once enough of it is dead
     @Override
     public void delete(String vectorId) {
-
+        lock.writeLock().lock();
+        try {
+            if (remove(vectorId)) {
+                mutationsSinceCheck++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        maybeScheduleMaintenance();
     }
 
     @Override
     public void insertAsync(List<Vector> vectors) {
-
+        if (executor == null) {
+            // Sequential fallback
+            for (Vector v : vectors) {
+                insert(v);
+            }
+            return;
+        }
+        List<CompletableFuture<Void>> futures = vectors.stream()
+                .map(v -> CompletableFuture.runAsync(() -> insert(v), executor))
+                .toList();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
     }
 
     @Override
     public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset) {
-        return null;
+        if (executor == null) {
+            return CompletableFuture.completedFuture(search(query, k, dataset));
+        }
+        return CompletableFuture.supplyAsync(() -> search(query, k, dataset), executor);
+    }
+
+    // drift check: recenters lists whose members moved away from their centroid and splits lists
+    // that grew past SPLIT_FACTOR times the average with a 2-means over their members.
+    // runs in the background after enough mutations, can also be called directly;
+    // returns the number of lists that were split
+    public int rebalance() {
+        List<Integer> drifted = new ArrayList<>();
+        List<float[]> means = new ArrayList<>();
+        List<Integer> oversized = new ArrayList<>();
+        List<List<Vector>> samples = new ArrayList<>();
+        int version;
+        // detection only reads, searches keep running
+        lock.readLock().lock();
+        try {
+            findDriftedLists(drifted, means);
+
+            // snapshot members of oversized lists, the 2-means itself runs without the lock
+            double average = (double) liveCount / invertedLists.size();
+            for (int listId = 0; listId < invertedLists.size(); listId++) {
+                int live = liveSize(listId);
+                if (live >= 2 && live > SPLIT_FACTOR * average) {
+                    oversized.add(listId);
+                    samples.add(sampleMembers(listId));
+                }
+            }
+            version = centroidsVersion;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<List<Vector>> splitCentroids = new ArrayList<>(oversized.size());
+        for (List<Vector> sample : samples) {
+            KMeans twoMeans = new KMeans(2, 10);
+            twoMeans.fit(sample);
+            splitCentroids.add(twoMeans.getCentroids());
+        }
+
+        lock.writeLock().lock();
+        try {
+            mutationsSinceCheck = 0;
+            if (version != centroidsVersion) {
+                // another rebalance got in first, the next check will look again
+                return 0;
+            }
+            if (drifted.isEmpty() && oversized.isEmpty()) {
+                return 0;
+            }
+            for (int i = 0; i < drifted.size(); i++) {
+                centroids.set(drifted.get(i), means.get(i));
+            }
+            for (int i = 0; i < oversized.size(); i++) {
+                splitList(oversized.get(i), splitCentroids.get(i));
+            }
+            centroidsVersion++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        System.out.println("IVF rebalance: recentered " + drifted.size() + " drifted lists, split "
+                + oversized.size() + " oversized lists");
+        return oversized.size();
+    }
+
+    // must hold the write lock
+    private int addList(int capacity) {
+        invertedLists.add(new IntArrayList(capacity));
+        deadCounts.add(0);
+        memberSums.add(new double[store.dimension()]);
+        return invertedLists.size() - 1;
+    }
+
+    // must hold the write lock
+    private void append(Vector vector, int listId) {
+        int ordinal = store.add(vector.vector());
+        dictionary.put(vector.id(), ordinal);
+        listOf.add(listId);
+        invertedLists.get(listId).add(ordinal);
+        accumulate(memberSums.get(listId), vector.vector(), 1);
+        liveCount++;
+    }
+
+    // must hold the write lock
+    private boolean remove(String vectorId) {
+        int ordinal = dictionary.remove(vectorId);
+        if (ordinal < 0) {
+            return false;
+        }
+        deleted.set(ordinal);
+        liveCount--;
+        int listId = listOf.get(ordinal);
+        accumulate(memberSums.get(listId), store.get(ordinal), -1);
+        int dead = deadCounts.get(listId) + 1;
+        deadCounts.set(listId, dead);
+        if (dead > COMPACTION_THRESHOLD * invertedLists.get(listId).size()) {
+            compactList(listId);
+        }
+        return true;
+    }
+
+    // drops tombstoned ordinals from the list, must hold the write lock
+    private void compactList(int listId) {
+        IntArrayList list = invertedLists.get(listId);
+        IntArrayList live = new IntArrayList(Math.max(1, list.size() - deadCounts.get(listId)));
+        for (int i = 0; i < list.size(); i++) {
+            int ordinal = list.get(i);
+            if (!deleted.get(ordinal)) {
+                live.add(ordinal);
+            }
+        }
+        invertedLists.set(listId, live);
+        deadCounts.set(listId, 0);
+    }
+
+    // collects lists whose live members' mean moved away from the centroid, must hold the lock
+    private void findDriftedLists(List<Integer> drifted, List<float[]> means) {
+        int dimension = store.dimension();
+        float[] centroid = new float[dimension];
+        for (int listId = 0; listId < invertedLists.size(); listId++) {
+            int live = liveSize(listId);
+            if (live == 0) continue;
+
+            double[] sum = memberSums.get(listId);
+            float[] mean = new float[dimension];
+            for (int d = 0; d < dimension; d++) {
+                mean[d] = (float) (sum[d] / live);
+            }
+            float drift = centroids.compare(metric, mean, listId);
+
+            // compare against half the distance to the closest other centroid
+            centroids.copyInto(listId, centroid);
+            float closest = Float.POSITIVE_INFINITY;
+            for (int other = 0; other < centroids.size(); other++) {
+                if (other != listId) {
+                    closest = Math.min(closest, centroids.compare(metric, centroid, other));
+                }
+            }
+            // squared distances, so the ratio is squared as well
+            if (drift > DRIFT_THRESHOLD * DRIFT_THRESHOLD * closest / 4) {
+                drifted.add(listId);
+                means.add(mean);
+            }
+        }
+    }
+
+    // replaces the list by two lists around the given centroids, must hold the write lock
+    private void splitList(int listId, List<Vector> splitCentroids) {
+        centroids.set(listId, splitCentroids.get(0).vector());
+        centroids.add(splitCentroids.get(1).vector());
+        int newListId = addList(16);
+
+        IntArrayList list = invertedLists.get(listId);
+        IntArrayList kept = new IntArrayList(list.size());
+        double[] keptSum = new double[store.dimension()];
+        float[] vector = new float[store.dimension()];
+        for (int i = 0; i < list.size(); i++) {
+            int ordinal = list.get(i);
+            if (deleted.get(ordinal)) continue;
+            store.copyInto(ordinal, vector);
+            if (centroids.compare(metric, vector, listId) <= centroids.compare(metric, vector, newListId)) {
+                kept.add(ordinal);
+                accumulate(keptSum, vector, 1);
+            } else {
+                invertedLists.get(newListId).add(ordinal);
+                accumulate(memberSums.get(newListId), vector, 1);
+                listOf.set(ordinal, newListId);
+            }
+        }
+        invertedLists.set(listId, kept);
+        memberSums.set(listId, keptSum);
+        deadCounts.set(listId, 0);
+    }
+
+    // must hold the lock
+    private List<Vector> sampleMembers(int listId) {
+        IntArrayList list = invertedLists.get(listId);
+        int step = Math.max(1, list.size() / MAX_SPLIT_SAMPLE);
+        List<Vector> sample = new ArrayList<>();
+        for (int i = 0; i < list.size(); i += step) {
+            int ordinal = list.get(i);
+            if (!deleted.get(ordinal)) {
+                sample.add(new Vector(dictionary.idOf(ordinal), store.get(ordinal)));
+            }
+        }
+        return sample;
+    }
+
+    private void maybeScheduleMaintenance() {
+        int threshold;
+        lock.readLock().lock();
+        try {
+            threshold = Math.max(MIN_MUTATIONS_PER_CHECK, liveCount / 10);
+            if (mutationsSinceCheck < threshold) {
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (maintenanceScheduled.compareAndSet(false, true)) {
+            maintenanceExecutor.execute(() -> {
+                try {
+                    rebalance();
+                } finally {
+                    maintenanceScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    // must hold the lock
+    private int liveSize(int listId) {
+        return invertedLists.get(listId).size() - deadCounts.get(listId);
+    }
+
+    // must hold the lock
+    private int nearestList(float[] vector) {
+        return nearestLists(vector, 1).ordinalAt(0);
+    }
+
+    // nearest centroids in ascending distance, must hold the lock
+    private TopKSelector nearestLists(float[] query, int n) {
+        TopKSelector nearest = new TopKSelector(Math.min(n, centroids.size()));
+        for (int c = 0; c < centroids.size(); c++) {
+            nearest.offer(c, centroids.compare(metric, query, c));
+        }
+        nearest.sortAscending();
+        return nearest;
+    }
+
+    private static void accumulate(double[] sum, float[] vector, int sign) {
+        for (int d = 0; d < sum.length; d++) {
+            sum[d] += sign * vector[d];
+        }
     }
 
     private void printClusterStatistics() {
@@ -123,7 +520,7 @@ public class IVFIndex implements VectorIndex {
         int maxSize = 0;
         int emptyCount = 0;
 
-        for (List<Vector> list : invertedLists) {
+        for (IntArrayList list : invertedLists) {
             int size = list.size();
             if (size == 0) {
                 emptyCount++;
@@ -132,12 +529,12 @@ public class IVFIndex implements VectorIndex {
             maxSize = Math.max(maxSize,size);
         }
 
-        double avgSize = (double) size() / nList;
+        double avgSize = (double) size() / invertedLists.size();
 
         System.out.println("Cluster statistics");
         System.out.printf(" Average cluster size: %.1f\n", avgSize);
         System.out.printf(" Min cluster size: %d\n", minSize);
         System.out.printf(" Max cluster size: %d\n", maxSize);
-        System.out.printf(" Empty clusters: %d / %d\n", emptyCount, nList);
+        System.out.printf(" Empty clusters: %d / %d\n", emptyCount, invertedLists.size());
     }
 }
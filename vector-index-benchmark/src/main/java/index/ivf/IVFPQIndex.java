@@ -0,0 +1,313 @@
+package index.ivf;
+
+import core.*;
+import utils.IntArrayList;
+import utils.TopKSelector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+// IVF with product-quantized inverted lists: every list stores m-byte codes of the residuals
+// (vector - list centroid) instead of full vectors, and is scanned with a per-query lookup table
+// built for that list (asymmetric distance computation). with rerankDepth > 0 the full vectors are
+// kept as well and the best rerankDepth approximate candidates are re-scored exactly
+public class IVFPQIndex implements VectorIndex {
+    // residuals used to train the product quantizer, larger inputs are sampled down
+    private static final int MAX_PQ_TRAINING_VECTORS = 65536;
+
+    private final int nList;
+    private final int nProbe;
+    private final int subspaces;
+    private final int rerankDepth;
+    private final int trainingThreads;
+    private final int miniBatchSize;
+    // coarse and sub-space codebooks are trained with euclidean k-means
+    private final DistanceMetric metric = DistanceMetric.EUCLIDEAN;
+
+    private KMeans kMeans;
+    private VectorStore centroids;
+    private ProductQuantizer pq;
+    // full vectors by ordinal, only kept for re-ranking
+    private VectorStore store;
+    private IdDictionary dictionary;
+    private List<CodeList> invertedLists;
+    // list and position inside that list by ordinal, -1 once deleted
+    private IntArrayList listOf;
+    private IntArrayList positionOf;
+    private long distanceCalculations = 0;
+
+    public IVFPQIndex(int nList, int nProbe, int subspaces) {
+        this(nList, nProbe, subspaces, 0);
+    }
+
+    public IVFPQIndex(int nList, int nProbe, int subspaces, int rerankDepth) {
+        this(nList, nProbe, subspaces, rerankDepth, Runtime.getRuntime().availableProcessors(), 0);
+    }
+
+    // subspaces must divide the dimension, every vector is stored as subspaces bytes
+    // trainingThreads and miniBatchSize are passed to the coarse KMeans, see its constructor
+    public IVFPQIndex(int nList, int nProbe, int subspaces, int rerankDepth, int trainingThreads, int miniBatchSize) {
+        this.nList = nList;
+        this.nProbe = nProbe;
+        this.subspaces = subspaces;
+        this.rerankDepth = Math.max(0, rerankDepth);
+        this.trainingThreads = trainingThreads;
+        this.miniBatchSize = miniBatchSize;
+    }
+
+    @Override
+    public void build(List<Vector> vectors) {
+        System.out.println("Building IVF-PQ index with nList = " + nList + ", nProbe = " + nProbe
+                + ", m = " + subspaces + ", rerank depth = " + rerankDepth);
+        System.out.println("Dataset size: " + vectors.size() + " vectors");
+
+        long startTime = System.currentTimeMillis();
+        int dimension = vectors.get(0).dimensions();
+
+        // coarse quantizer
+        kMeans = new KMeans(nList, 20, trainingThreads, miniBatchSize);
+        kMeans.fit(vectors);
+        centroids = VectorStore.of(kMeans.getCentroids());
+        int[] assignments = kMeans.assign(vectors);
+
+        // product quantizer on the residuals of a sample
+        List<float[]> residuals = new ArrayList<>();
+        for (int i : trainingSample(vectors.size())) {
+            residuals.add(residual(vectors.get(i).vector(), assignments[i], new float[dimension]));
+        }
+        pq = new ProductQuantizer(dimension, subspaces, trainingThreads);
+        pq.train(residuals);
+
+        // encode everything into the inverted lists
+        System.out.println("Encoding inverted lists...");
+        this.store = rerankDepth > 0 ? new VectorStore(dimension) : null;
+        this.dictionary = new IdDictionary(vectors.size());
+        this.listOf = new IntArrayList(vectors.size());
+        this.positionOf = new IntArrayList(vectors.size());
+        invertedLists = new ArrayList<>(nList);
+        for (int i = 0; i < nList; i++) {
+            invertedLists.add(new CodeList(pq.getCodeSize()));
+        }
+        float[] scratch = new float[dimension];
+        for (int i = 0; i < vectors.size(); i++) {
+            add(vectors.get(i), assignments[i], scratch);
+        }
+
+        printStatistics(dimension);
+        long totalTime = System.currentTimeMillis() - startTime;
+        System.out.printf("IVF-PQ index built in %.2fs\n", totalTime/1000.0);
+    }
+
+    @Override
+    public int size() {
+        int total = 0;
+        for (CodeList list : invertedLists) {
+            total += list.size();
+        }
+        return total;
+    }
+
+    @Override
+    public List<QueryResult> search(float[] query, int k, String dataset) {
+        // find nProbe nearest centroids (coarse search)
+        List<Integer> nearestCluster = kMeans.findNearestCentroids(query, nProbe);
+        distanceCalculations += nList;
+
+        // scan the codes of the probed lists with one lookup table per list
+        int depth = store != null ? Math.max(k, rerankDepth) : k;
+        TopKSelector candidates = new TopKSelector(depth);
+        float[] residual = new float[pq.getDimension()];
+        float[] table = new float[pq.tableSize()];
+        int codeSize = pq.getCodeSize();
+        for (int clusterId : nearestCluster) {
+            CodeList list = invertedLists.get(clusterId);
+            if (list.size() == 0) continue;
+
+            pq.computeTable(residual(query, clusterId, residual), table);
+            // a table costs one sub-distance per codeword and subspace, about codewords full distances
+            distanceCalculations += pq.getCodewords();
+            byte[] codes = list.codes;
+            for (int i = 0; i < list.size(); i++) {
+                candidates.offer(list.ordinals.get(i), pq.distance(table, codes, i * codeSize));
+                distanceCalculations++;
+            }
+        }
+        candidates.sortAscending();
+
+        if (store == null) {
+            return toResults(candidates);
+        }
+
+        // re-rank the approximate candidates with exact distances
+        TopKSelector topK = new TopKSelector(k);
+        for (int i = 0; i < candidates.size(); i++) {
+            int ordinal = candidates.ordinalAt(i);
+            topK.offer(ordinal, store.compare(metric, query, ordinal));
+            distanceCalculations++;
+        }
+        topK.sortAscending();
+        return toResults(topK);
+    }
+
+    @Override
+    public long getDistanceCalculations() {
+        return distanceCalculations;
+    }
+
+    @Override
+    public void resetDistanceCalculations() {
+        distanceCalculations = 0;
+    }
+
+    @Override
+    public String getName() {
+        return rerankDepth > 0 ? "IVF-PQ Index (rerank " + rerankDepth + ")" : "IVF-PQ Index";
+    }
+
+    // encodes the vector into the list of its nearest centroid with the trained quantizers,
+    // an existing id is replaced
+    @Override
+    public void insert(Vector vector) {
+        delete(vector.id());
+        add(vector, kMeans.findNearestCentroid(vector.vector()), new float[pq.getDimension()]);
+    }
+
+    // removes the code from its list, the ordinal is not reused
+    @Override
+    public void delete(String vectorId) {
+        int ordinal = dictionary.remove(vectorId);
+        if (ordinal < 0) {
+            return;
+        }
+        int position = positionOf.get(ordinal);
+        int moved = invertedLists.get(listOf.get(ordinal)).remove(position);
+        if (moved >= 0) {
+            positionOf.set(moved, position);
+        }
+        listOf.set(ordinal, -1);
+        positionOf.set(ordinal, -1);
+    }
+
+    @Override
+    public void insertAsync(List<Vector> vectors) {
+        for (Vector vector : vectors) {
+            insert(vector);
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset) {
+        return CompletableFuture.supplyAsync(() -> search(query, k, dataset));
+    }
+
+    private void add(Vector vector, int clusterId, float[] scratch) {
+        int ordinal = dictionary.add(vector.id());
+        if (store != null) {
+            store.add(vector.vector());
+        }
+        CodeList list = invertedLists.get(clusterId);
+        listOf.add(clusterId);
+        positionOf.add(list.size());
+        pq.encode(residual(vector.vector(), clusterId, scratch), list.append(ordinal), (list.size() - 1) * pq.getCodeSize());
+    }
+
+    // vector - centroid, written into dst
+    private float[] residual(float[] vector, int clusterId, float[] dst) {
+        centroids.copyInto(clusterId, dst);
+        for (int d = 0; d < dst.length; d++) {
+            dst[d] = vector[d] - dst[d];
+        }
+        return dst;
+    }
+
+    private int[] trainingSample(int size) {
+        int[] indices = new int[size];
+        for (int i = 0; i < size; i++) {
+            indices[i] = i;
+        }
+        if (size <= MAX_PQ_TRAINING_VECTORS) {
+            return indices;
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < MAX_PQ_TRAINING_VECTORS; i++) {
+            int j = i + random.nextInt(size - i);
+            int tmp = indices[i];
+            indices[i] = indices[j];
+            indices[j] = tmp;
+        }
+        return Arrays.copyOf(indices, MAX_PQ_TRAINING_VECTORS);
+    }
+
+    private List<QueryResult> toResults(TopKSelector selector) {
+        List<QueryResult> results = new ArrayList<>(selector.size());
+        for (int i = 0; i < selector.size(); i++) {
+            results.add(new QueryResult(selector.ordinalAt(i), metric.toDistance(selector.scoreAt(i)), dictionary));
+        }
+        return results;
+    }
+
+    private void printStatistics(int dimension) {
+        int minSize = Integer.MAX_VALUE;
+        int maxSize = 0;
+        long codeBytes = 0;
+        for (CodeList list : invertedLists) {
+            minSize = Math.min(minSize, list.size());
+            maxSize = Math.max(maxSize, list.size());
+            codeBytes += (long) list.size() * pq.getCodeSize();
+        }
+
+        System.out.println("Cluster statistics");
+        System.out.printf(" Average cluster size: %.1f\n", (double) size() / nList);
+        System.out.printf(" Min cluster size: %d\n", minSize);
+        System.out.printf(" Max cluster size: %d\n", maxSize);
+        System.out.printf(" Code size: %d bytes per vector (%.0fx smaller than float vectors)\n",
+                pq.getCodeSize(), (double) dimension * Float.BYTES / pq.getCodeSize());
+        System.out.printf(" Codes: %.1f MB", codeBytes / (1024.0 * 1024.0));
+        if (store != null) {
+            System.out.printf(", full vectors kept for re-ranking: %.1f MB", store.ramBytesUsed() / (1024.0 * 1024.0));
+        }
+        System.out.println();
+    }
+
+    // ordinals of one inverted list and their codes back to back, code i starts at i * codeSize
+    private static class CodeList {
+        private final int codeSize;
+        private final IntArrayList ordinals = new IntArrayList();
+        private byte[] codes;
+
+        CodeList(int codeSize) {
+            this.codeSize = codeSize;
+            this.codes = new byte[codeSize * 16];
+        }
+
+        int size() {
+            return ordinals.size();
+        }
+
+        // reserves a code slot for ordinal and returns the code array to write it into
+        byte[] append(int ordinal) {
+            int needed = (ordinals.size() + 1) * codeSize;
+            if (needed > codes.length) {
+                codes = Arrays.copyOf(codes, Math.max(needed, codes.length * 2));
+            }
+            ordinals.add(ordinal);
+            return codes;
+        }
+
+        // swap-removes the entry at position, returns the ordinal moved into it or -1
+        int remove(int position) {
+            int last = ordinals.size() - 1;
+            int moved = -1;
+            if (position != last) {
+                moved = ordinals.get(last);
+                ordinals.set(position, moved);
+                System.arraycopy(codes, last * codeSize, codes, position * codeSize, codeSize);
+            }
+            ordinals.removeLast();
+            return moved;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package index.ivf;
+
+import core.DistanceEngine;
+import core.KMeans;
+import core.Vector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// splits vectors into m sub-vectors and encodes each with the id of its nearest codeword
+// in a per-subspace codebook of up to 256 entries, so one vector is stored as m bytes
+public class ProductQuantizer {
+    private static final int MAX_CODEWORDS = 256;
+    private static final int TRAINING_ITERATIONS = 20;
+
+    private final int dimension;
+    private final int subspaces;
+    private final int subDimension;
+    private final int trainingThreads;
+    private final DistanceEngine engine = DistanceEngine.INSTANCE;
+
+    private int codewords;
+    // codebooks[s] holds the codewords of subspace s back to back, codeword c starts at c * subDimension
+    private float[][] codebooks;
+
+    public ProductQuantizer(int dimension, int subspaces, int trainingThreads) {
+        if (subspaces <= 0 || dimension % subspaces != 0) {
+            throw new IllegalArgumentException("Dimension " + dimension + " is not divisible into " + subspaces + " subspaces");
+        }
+        this.dimension = dimension;
+        this.subspaces = subspaces;
+        this.subDimension = dimension / subspaces;
+        this.trainingThreads = trainingThreads;
+    }
+
+    // one k-means per subspace, over the matching slice of every training vector
+    public void train(List<float[]> vectors) {
+        codewords = Math.min(MAX_CODEWORDS, vectors.size());
+        codebooks = new float[subspaces][];
+        System.out.println("Training product quantizer: " + subspaces + " subspaces x " + codewords
+                + " codewords on " + vectors.size() + " vectors");
+
+        for (int s = 0; s < subspaces; s++) {
+            int from = s * subDimension;
+            List<Vector> slices = new ArrayList<>(vectors.size());
+            for (int i = 0; i < vectors.size(); i++) {
+                float[] slice = new float[subDimension];
+                System.arraycopy(vectors.get(i), from, slice, 0, subDimension);
+                slices.add(new Vector("slice_" + i, slice));
+            }
+
+            KMeans kMeans = new KMeans(codewords, TRAINING_ITERATIONS, trainingThreads, 0);
+            kMeans.fit(slices);
+            List<Vector> centroids = kMeans.getCentroids();
+            float[] codebook = new float[codewords * subDimension];
+            for (int c = 0; c < codewords; c++) {
+                System.arraycopy(centroids.get(c).vector(), 0, codebook, c * subDimension, subDimension);
+            }
+            codebooks[s] = codebook;
+        }
+    }
+
+    // writes the m codes of vector to codes[offset, offset + m)
+    public void encode(float[] vector, byte[] codes, int offset) {
+        float[] slice = new float[subDimension];
+        for (int s = 0; s < subspaces; s++) {
+            System.arraycopy(vector, s * subDimension, slice, 0, subDimension);
+            float[] codebook = codebooks[s];
+            int best = 0;
+            float bestDistance = Float.POSITIVE_INFINITY;
+            for (int c = 0; c < codewords; c++) {
+                float distance = engine.squaredL2(slice, codebook, c * subDimension);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = c;
+                }
+            }
+            codes[offset + s] = (byte) best;
+        }
+    }
+
+    // asymmetric distance table for one query: table[s * codewords + c] is the squared distance
+    // between the query slice s and codeword c, table must hold tableSize() floats
+    public void computeTable(float[] query, float[] table) {
+        float[] slice = new float[subDimension];
+        for (int s = 0; s < subspaces; s++) {
+            System.arraycopy(query, s * subDimension, slice, 0, subDimension);
+            float[] codebook = codebooks[s];
+            int base = s * codewords;
+            for (int c = 0; c < codewords; c++) {
+                table[base + c] = engine.squaredL2(slice, codebook, c * subDimension);
+            }
+        }
+    }
+
+    // approximate squared l2 distance between the table's query and the code at codes[offset]
+    public float distance(float[] table, byte[] codes, int offset) {
+        float sum = 0;
+        int base = 0;
+        for (int s = 0; s < subspaces; s++) {
+            sum += table[base + (codes[offset + s] & 0xff)];
+            base += codewords;
+        }
+        return sum;
+    }
+
+    public int tableSize() {
+        return subspaces * codewords;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    // bytes per encoded vector
+    public int getCodeSize() {
+        return subspaces;
+    }
+
+    public int getCodewords() {
+        return codewords;
+    }
+}
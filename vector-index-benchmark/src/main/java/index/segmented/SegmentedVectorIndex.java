@@ -0,0 +1,608 @@
+package index.segmented;
+
+import core.FanOutSearch;
+import core.QueryResult;
+import core.Vector;
+import core.VectorIndex;
+import index.hnsw.JVectorHNSWIndex;
+import index.hnsw.OnDiskHNSWIndex;
+import utils.TopKSelector;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * LSM-style vector index: inserts go to a small mutable {@link JVectorHNSWIndex}, the memtable,
+ * which is sealed into an immutable {@link OnDiskHNSWIndex} segment (graph plus PQ) once it holds
+ * memtableCapacity vectors. Queries fan out in parallel to every segment, the memtables being
+ * sealed and the memtable through a {@link FanOutSearch}, which merges the per-partition top k.
+ *
+ * Segments are never changed in place: a delete only sets the segment's delete bit, and a
+ * {@link TieredMergePolicy} merges similar-sized segments, or rewrites one with many deletes, into
+ * a new segment in the background. The new segment replaces the old ones under a short write lock
+ * that only replays the deletes made during the merge, so write amplification and pauses are
+ * bounded by segment size instead of growing with the whole index.
+ *
+ * The memtable is not durable; pair it with a {@link persistence.WriteAheadLog} as
+ * {@link index.hnsw.DurableJVectorHNSWIndex} does if it has to survive a crash.
+ */
+public class SegmentedVectorIndex implements VectorIndex, AutoCloseable {
+    private final Path directory;
+    private final int m;
+    private final int efConstruction;
+    private final int efSearch;
+    private final int pqSubspaces;
+    private final int memtableCapacity;
+    private final TieredMergePolicy mergePolicy;
+    private final ExecutorService executor;
+    private final FanOutSearch fanOut;
+    // seals and merges, one at a time
+    private final ExecutorService maintenanceExecutor;
+
+    // searches and mutations share the read side, swapping memtables and segments takes the write side
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+    // null until the first insert after a seal
+    private volatile JVectorHNSWIndex memtable;
+    private final List<SealingMemtable> sealing = new ArrayList<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private final AtomicInteger nextSegmentId = new AtomicInteger();
+    private volatile boolean closed;
+
+    private final LongAdder vectorsInserted = new LongAdder();
+    private final AtomicLong vectorsWritten = new AtomicLong();
+    private final AtomicInteger sealCount = new AtomicInteger();
+    private final AtomicInteger mergeCount = new AtomicInteger();
+    private final AtomicLong maxSwapPauseMicros = new AtomicLong();
+
+    // a full memtable, frozen and still searched while it is written out
+    private static final class SealingMemtable {
+        final JVectorHNSWIndex memtable;
+        // deletes of its ids after it was frozen, applied to the segment it becomes
+        final Set<String> deletes = ConcurrentHashMap.newKeySet();
+
+        SealingMemtable(JVectorHNSWIndex memtable) {
+            this.memtable = memtable;
+        }
+    }
+
+    private static final class Segment {
+        final OnDiskHNSWIndex index;
+        // set while a merge reads this segment, collects the deletes to replay on the merged one
+        volatile Set<String> mergeDeletes;
+
+        Segment(OnDiskHNSWIndex index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * @param directory        parent of the segment directories
+     * @param memtableCapacity vectors in the memtable before it is sealed into a segment
+     * @param executor         runs insertAsync and the search fan-out, may be null
+     */
+    public SegmentedVectorIndex(Path directory, int m, int efConstruction, int efSearch, int pqSubspaces,
+                                int memtableCapacity, TieredMergePolicy mergePolicy,
+                                ExecutorService executor) {
+        this.directory = directory;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.pqSubspaces = pqSubspaces;
+        this.memtableCapacity = memtableCapacity;
+        this.mergePolicy = mergePolicy;
+        this.executor = executor;
+        this.fanOut = new FanOutSearch(executor, Runtime.getRuntime().availableProcessors());
+        this.maintenanceExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "segment-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public SegmentedVectorIndex(Path directory, int m, int efConstruction, int efSearch, int pqSubspaces,
+                                int memtableCapacity) {
+        this(directory, m, efConstruction, efSearch, pqSubspaces, memtableCapacity,
+                TieredMergePolicy.defaults(), null);
+    }
+
+    /**
+     * Replaces the contents with one segment bulk built from the vectors.
+     */
+    @Override
+    public void build(List<Vector> vectors) {
+        System.out.println("Creating segmented JVector index with memtable capacity " + memtableCapacity
+                + ", " + mergePolicy.segmentsPerTier() + " segments per tier");
+        awaitMaintenance();
+        List<Segment> dropped;
+        stateLock.writeLock().lock();
+        try {
+            checkOpen();
+            memtable = null;
+            sealing.clear();
+            dropped = new ArrayList<>(segments);
+            segments.clear();
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        dropSegments(dropped);
+
+        if (vectors.isEmpty()) return;
+        OnDiskHNSWIndex base = new OnDiskHNSWIndex(nextSegmentDirectory(), m, efConstruction, efSearch, pqSubspaces);
+        base.build(vectors);
+        vectorsInserted.add(vectors.size());
+        vectorsWritten.addAndGet(vectors.size());
+        stateLock.writeLock().lock();
+        try {
+            segments.add(new Segment(base));
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts into the memtable and hands it to the background sealer once it is full. An id held
+     * by an older segment or memtable is deleted there first, so the newest vector wins.
+     */
+    @Override
+    public void insert(Vector vector) {
+        JVectorHNSWIndex target;
+        stateLock.readLock().lock();
+        try {
+            checkOpen();
+            deleteFromSealed(vector.id());
+            target = memtable;
+            if (target == null) {
+                target = createMemtable(vector);
+            } else {
+                target.insert(vector);
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        vectorsInserted.increment();
+        if (target.size() >= memtableCapacity) {
+            sealMemtable(target);
+        }
+    }
+
+    // the first vector after a seal builds the next memtable
+    private synchronized JVectorHNSWIndex createMemtable(Vector vector) {
+        if (memtable != null) {
+            memtable.insert(vector);
+        } else {
+            JVectorHNSWIndex created = new JVectorHNSWIndex(m, efConstruction, efSearch, executor);
+            created.build(List.of(vector));
+            memtable = created;
+        }
+        return memtable;
+    }
+
+    @Override
+    public void delete(String vectorId) {
+        stateLock.readLock().lock();
+        try {
+            checkOpen();
+            JVectorHNSWIndex active = memtable;
+            if (active != null) {
+                active.delete(vectorId);
+            }
+            deleteFromSealed(vectorId);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    // must hold the state read lock; sealing memtables stay frozen, their deletes are only recorded
+    private void deleteFromSealed(String vectorId) {
+        for (SealingMemtable s : sealing) {
+            if (s.memtable.contains(vectorId)) {
+                s.deletes.add(vectorId);
+            }
+        }
+        for (Segment segment : segments) {
+            segment.index.delete(vectorId);
+            Set<String> mergeDeletes = segment.mergeDeletes;
+            if (mergeDeletes != null) {
+                mergeDeletes.add(vectorId);
+            }
+        }
+    }
+
+    @Override
+    public void insertAsync(List<Vector> vectors) {
+        if (executor == null) {
+            for (Vector v : vectors) {
+                insert(v);
+            }
+            return;
+        }
+        List<CompletableFuture<Void>> futures = vectors.stream()
+                .map(v -> CompletableFuture.runAsync(() -> insert(v), executor))
+                .toList();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+
+    /**
+     * Fans the query out to every segment, largest first, then the sealing memtables and the
+     * memtable, and merges each one's top k as it finishes. A partition that starts late walks its
+     * graph only down to the k-th score the others already found. JVector scores are similarities,
+     * larger is closer, so they are negated for the shared top k.
+     */
+    @Override
+    public List<QueryResult> search(float[] query, int k, String dataset) {
+        stateLock.readLock().lock();
+        try {
+            checkOpen();
+            JVectorHNSWIndex active = memtable;
+            int segmentCount = segments.size();
+            int partitions = segmentCount + sealing.size() + (active == null ? 0 : 1);
+            // every partition owns a stride of slots, the shared top k refers to results by slot
+            int stride = 2 * k;
+            QueryResult[] slots = new QueryResult[partitions * stride];
+            TopKSelector topK = fanOut.search(partitions, k, (p, shared) -> {
+                float bound = shared.bound();
+                float minScore = bound == Float.POSITIVE_INFINITY ? 0.0F : Math.max(0.0F, -bound);
+                List<QueryResult> found;
+                if (p < segmentCount) {
+                    found = segments.get(p).index.search(query, k, minScore);
+                } else if (p < segmentCount + sealing.size()) {
+                    found = searchSealing(sealing.get(p - segmentCount), query, k, minScore);
+                } else {
+                    found = active.search(query, k, minScore);
+                }
+                TopKSelector partial = new TopKSelector(k);
+                int base = p * stride;
+                for (int i = 0; i < found.size() && i < stride; i++) {
+                    QueryResult result = found.get(i);
+                    // resolved before a later delete unbinds the ordinal
+                    if (result.getId() == null) continue;
+                    slots[base + i] = result;
+                    partial.offer(base + i, -result.getDistance());
+                }
+                shared.merge(partial);
+            }).result();
+
+            List<QueryResult> results = new ArrayList<>(topK.size());
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < topK.size(); i++) {
+                QueryResult result = slots[topK.ordinalAt(i)];
+                // a rebind in flight can briefly show an id in two places
+                if (seen.add(result.getId())) {
+                    results.add(result);
+                }
+            }
+            return results;
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    // over-fetches for the results the recorded deletes remove
+    private List<QueryResult> searchSealing(SealingMemtable s, float[] query, int k, float minScore) {
+        int fetch = k + Math.min(k, s.deletes.size());
+        List<QueryResult> results = new ArrayList<>();
+        for (QueryResult result : s.memtable.search(query, fetch, minScore)) {
+            if (!s.deletes.contains(result.getId())) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public CompletableFuture<List<QueryResult>> searchAsync(float[] query, int k, String dataset) {
+        return CompletableFuture.supplyAsync(() -> search(query, k, dataset));
+    }
+
+    /**
+     * Seals the memtable now, even if it is not full, and waits for the seal and the merges it triggers.
+     */
+    public void flush() {
+        JVectorHNSWIndex current;
+        stateLock.readLock().lock();
+        try {
+            current = memtable;
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        if (current != null) {
+            sealMemtable(current);
+        }
+        awaitMaintenance();
+    }
+
+    // swaps in an empty memtable and queues the full one for sealing, once per memtable
+    private void sealMemtable(JVectorHNSWIndex full) {
+        long pauseStart = System.nanoTime();
+        stateLock.writeLock().lock();
+        try {
+            if (closed || memtable != full) return;
+            memtable = null;
+            SealingMemtable s = new SealingMemtable(full);
+            sealing.add(s);
+            // queued under the lock, so close() cannot shut the executor down in between
+            maintenanceExecutor.execute(() -> {
+                try {
+                    seal(s);
+                    runMerges();
+                } catch (IOException | RuntimeException e) {
+                    // the memtable stays in the sealing list and keeps serving searches
+                    System.out.println("Sealing memtable failed: " + e);
+                }
+            });
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        recordPause(pauseStart);
+    }
+
+    private void seal(SealingMemtable s) throws IOException {
+        long startTime = System.currentTimeMillis();
+        OnDiskHNSWIndex segment = null;
+        if (s.memtable.size() > 0) {
+            Path segmentDirectory = nextSegmentDirectory();
+            s.memtable.writeOnDisk(segmentDirectory, pqSubspaces);
+            segment = OnDiskHNSWIndex.load(segmentDirectory, efSearch);
+        }
+
+        long pauseStart = System.nanoTime();
+        stateLock.writeLock().lock();
+        try {
+            if (segment != null) {
+                for (String id : s.deletes) {
+                    segment.delete(id);
+                }
+                segments.add(new Segment(segment));
+            }
+            sealing.remove(s);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        recordPause(pauseStart);
+
+        int written = segment == null ? 0 : segment.nodeCount();
+        vectorsWritten.addAndGet(written);
+        sealCount.incrementAndGet();
+        System.out.printf("Sealed memtable of %d vectors in %.2fs\n", written,
+                (System.currentTimeMillis() - startTime) / 1000.0);
+    }
+
+    // merges until the policy has nothing left to do
+    private void runMerges() throws IOException {
+        while (!closed) {
+            List<Segment> picked = new ArrayList<>();
+            stateLock.readLock().lock();
+            try {
+                int[] nodeCounts = new int[segments.size()];
+                int[] liveCounts = new int[segments.size()];
+                for (int i = 0; i < segments.size(); i++) {
+                    nodeCounts[i] = segments.get(i).index.nodeCount();
+                    liveCounts[i] = segments.get(i).index.size();
+                }
+                for (int i : mergePolicy.select(nodeCounts, liveCounts, memtableCapacity)) {
+                    picked.add(segments.get(i));
+                }
+            } finally {
+                stateLock.readLock().unlock();
+            }
+            if (picked.isEmpty()) return;
+            merge(picked);
+        }
+    }
+
+    /**
+     * Builds one segment from the live vectors of the picked ones while they keep serving, then
+     * swaps it in. Deletes that arrive meanwhile go to the old segments and are replayed on the new one.
+     */
+    private void merge(List<Segment> picked) throws IOException {
+        long startTime = System.currentTimeMillis();
+        // recording starts before the read, so a delete the read missed is recorded
+        for (Segment segment : picked) {
+            segment.mergeDeletes = ConcurrentHashMap.newKeySet();
+        }
+        List<Vector> live = new ArrayList<>();
+        for (Segment segment : picked) {
+            segment.index.forEachLive((id, vector) -> live.add(new Vector(id, vector)));
+        }
+
+        OnDiskHNSWIndex merged = null;
+        if (!live.isEmpty()) {
+            merged = new OnDiskHNSWIndex(nextSegmentDirectory(), m, efConstruction, efSearch, pqSubspaces);
+            merged.build(live);
+        }
+
+        long pauseStart = System.nanoTime();
+        stateLock.writeLock().lock();
+        try {
+            if (merged != null) {
+                for (Segment segment : picked) {
+                    for (String id : segment.mergeDeletes) {
+                        merged.delete(id);
+                    }
+                }
+                // merged segments are the large ones, the fan-out searches the list front first
+                segments.add(0, new Segment(merged));
+            }
+            segments.removeAll(picked);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        recordPause(pauseStart);
+        // searches that saw the old segments finished before the write lock was granted
+        dropSegments(picked);
+
+        vectorsWritten.addAndGet(live.size());
+        mergeCount.incrementAndGet();
+        System.out.printf("Merged %d segments into one of %d vectors in %.2fs\n", picked.size(), live.size(),
+                (System.currentTimeMillis() - startTime) / 1000.0);
+    }
+
+    private void recordPause(long pauseStart) {
+        maxSwapPauseMicros.accumulateAndGet((System.nanoTime() - pauseStart) / 1000, Math::max);
+    }
+
+    private Path nextSegmentDirectory() {
+        return directory.resolve(String.format("segment-%06d", nextSegmentId.getAndIncrement()));
+    }
+
+    private void dropSegments(List<Segment> dropped) {
+        for (Segment segment : dropped) {
+            segment.index.close();
+            try (Stream<Path> files = Files.walk(segment.index.getDirectory())) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Deleting segment " + segment.index.getDirectory() + " failed", e);
+            }
+        }
+    }
+
+    // waits for queued seals and merges
+    private void awaitMaintenance() {
+        try {
+            maintenanceExecutor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Segment maintenance failed", e.getCause());
+        }
+    }
+
+    @Override
+    public int size() {
+        stateLock.readLock().lock();
+        try {
+            int size = memtable == null ? 0 : memtable.size();
+            for (SealingMemtable s : sealing) {
+                size += s.memtable.size() - s.deletes.size();
+            }
+            for (Segment segment : segments) {
+                size += segment.index.size();
+            }
+            return size;
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    // nodes visited in the on-disk segments, the memtable does not count
+    @Override
+    public long getDistanceCalculations() {
+        stateLock.readLock().lock();
+        try {
+            long total = 0;
+            for (Segment segment : segments) {
+                total += segment.index.getDistanceCalculations();
+            }
+            return total;
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void resetDistanceCalculations() {
+        stateLock.readLock().lock();
+        try {
+            for (Segment segment : segments) {
+                segment.index.resetDistanceCalculations();
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "JVector-Segmented";
+    }
+
+    public int getSegmentCount() {
+        stateLock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    public int getSealCount() {
+        return sealCount.get();
+    }
+
+    public int getMergeCount() {
+        return mergeCount.get();
+    }
+
+    // vectors written to segments by seals and merges per vector inserted
+    public double getWriteAmplification() {
+        long inserted = vectorsInserted.sum();
+        return inserted == 0 ? 0 : vectorsWritten.get() / (double) inserted;
+    }
+
+    // longest memtable or segment swap, including the wait for searches still running on the old state
+    public long getMaxSwapPauseMicros() {
+        return maxSwapPauseMicros.get();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Waits for running seals and merges and closes the segments. The segment files stay on disk,
+     * the memtable is dropped.
+     */
+    @Override
+    public void close() {
+        stateLock.writeLock().lock();
+        try {
+            closed = true;
+            maintenanceExecutor.shutdown();
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        try {
+            maintenanceExecutor.awaitTermination(10, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stateLock.writeLock().lock();
+        try {
+            for (Segment segment : segments) {
+                segment.index.close();
+            }
+            segments.clear();
+            sealing.clear();
+            memtable = null;
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Segmented index " + directory + " is closed");
+        }
+    }
+}
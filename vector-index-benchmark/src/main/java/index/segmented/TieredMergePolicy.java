@@ -0,0 +1,90 @@
+package index.segmented;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * When {@link SegmentedVectorIndex} merges its on-disk segments.
+ * Segments are grouped into tiers by live size: tier t holds segments of about
+ * baseSize * segmentsPerTier^t vectors, baseSize being the memtable capacity. Once a tier holds
+ * segmentsPerTier segments they are merged into one segment of the next tier, so a vector is
+ * rewritten about once per tier and no merge reads more than maxMergedVectors vectors.
+ * A segment whose deleted ratio reaches maxDeletedRatio is rewritten on its own, which takes the
+ * place of the in-place cleanup of {@link index.hnsw.JVectorHNSWIndex}.
+ *
+ * @param segmentsPerTier  segments of one tier merged together, at least 2
+ * @param maxDeletedRatio  rewrite a segment once deleted / written nodes reaches this ratio
+ * @param maxMergedVectors never merge segments holding more live vectors than this together
+ */
+public record TieredMergePolicy(int segmentsPerTier, double maxDeletedRatio, int maxMergedVectors) {
+
+    public TieredMergePolicy {
+        if (segmentsPerTier < 2) {
+            throw new IllegalArgumentException("segmentsPerTier must be at least 2: " + segmentsPerTier);
+        }
+        if (maxDeletedRatio <= 0 || maxDeletedRatio > 1) {
+            throw new IllegalArgumentException("maxDeletedRatio must be in (0, 1]: " + maxDeletedRatio);
+        }
+        if (maxMergedVectors <= 0) {
+            throw new IllegalArgumentException("maxMergedVectors must be positive: " + maxMergedVectors);
+        }
+    }
+
+    public static TieredMergePolicy defaults() {
+        return new TieredMergePolicy(4, 0.3, 4_000_000);
+    }
+
+    public int tierOf(int liveCount, int baseSize) {
+        int tier = 0;
+        long tierLimit = (long) baseSize * segmentsPerTier;
+        while (liveCount >= tierLimit) {
+            tier++;
+            tierLimit *= segmentsPerTier;
+        }
+        return tier;
+    }
+
+    /**
+     * Picks the segments of the next merge by their position in the arrays, empty if none is due.
+     * The lowest full tier goes first, then the segment with the most deletes over the limit.
+     *
+     * @param nodeCounts nodes written to each segment, live or deleted
+     * @param liveCounts live vectors of each segment
+     * @param baseSize   size of a freshly sealed segment
+     */
+    public int[] select(int[] nodeCounts, int[] liveCounts, int baseSize) {
+        List<List<Integer>> tiers = new ArrayList<>();
+        for (int i = 0; i < liveCounts.length; i++) {
+            int tier = tierOf(liveCounts[i], baseSize);
+            while (tiers.size() <= tier) {
+                tiers.add(new ArrayList<>());
+            }
+            tiers.get(tier).add(i);
+        }
+
+        for (List<Integer> tier : tiers) {
+            if (tier.size() < segmentsPerTier) continue;
+            // the smallest ones, so a tier does not keep rewriting its largest segment
+            tier.sort(Comparator.comparingInt(i -> liveCounts[i]));
+            int[] picked = tier.subList(0, segmentsPerTier).stream().mapToInt(Integer::intValue).toArray();
+            long merged = Arrays.stream(picked).mapToLong(i -> liveCounts[i]).sum();
+            if (merged <= maxMergedVectors) {
+                return picked;
+            }
+        }
+
+        int worst = -1;
+        double worstRatio = maxDeletedRatio;
+        for (int i = 0; i < nodeCounts.length; i++) {
+            if (nodeCounts[i] == 0) continue;
+            double ratio = (nodeCounts[i] - liveCounts[i]) / (double) nodeCounts[i];
+            if (ratio >= worstRatio) {
+                worst = i;
+                worstRatio = ratio;
+            }
+        }
+        return worst < 0 ? new int[0] : new int[]{worst};
+    }
+}
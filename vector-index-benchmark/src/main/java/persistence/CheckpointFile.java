@@ -0,0 +1,148 @@
+package persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The live vectors of an index as of one WAL position. Recovery reads the checkpoint and replays
+ * the log records after its LSN on top.
+ *
+ * Layout: int magic, int version, long lsn, int dimension, then per vector byte 1, UTF id and
+ * dimension floats, then byte 0, long count and a CRC32 of everything before it. It is written to
+ * a temporary file, fsynced and renamed over the previous one, so a crash mid-write leaves the
+ * previous checkpoint in place.
+ */
+public final class CheckpointFile {
+    private static final String FILE_NAME = "checkpoint.bin";
+    private static final String TEMP_NAME = "checkpoint.tmp";
+    private static final int MAGIC = 0x56434B50;
+    private static final int VERSION = 1;
+
+    private CheckpointFile() {
+    }
+
+    public static boolean exists(Path directory) {
+        return Files.exists(directory.resolve(FILE_NAME));
+    }
+
+    /**
+     * Feeds every vector of the checkpoint to the consumer and returns its LSN, 0 without a checkpoint.
+     */
+    public static long read(Path directory, BiConsumer<String, float[]> consumer) throws IOException {
+        Path file = directory.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        // the checksum sits above the buffer, so it covers exactly the bytes read
+        CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16), new CRC32());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version + " in " + file);
+            }
+            long lsn = in.readLong();
+            int dimension = in.readInt();
+
+            long count = 0;
+            while (in.readByte() == 1) {
+                String id = in.readUTF();
+                float[] vector = new float[dimension];
+                for (int j = 0; j < dimension; j++) {
+                    vector[j] = in.readFloat();
+                }
+                consumer.accept(id, vector);
+                count++;
+            }
+            long expectedCount = in.readLong();
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() != crc || expectedCount != count) {
+                throw new IOException("Checkpoint " + file + " is corrupt");
+            }
+            return lsn;
+        }
+    }
+
+    /**
+     * Streams a new checkpoint to a temporary file; commit() makes it the current one.
+     */
+    public static class Writer implements AutoCloseable {
+        private final Path directory;
+        private final FileOutputStream file;
+        private final BufferedOutputStream buffer;
+        private final CheckedOutputStream checked;
+        private final DataOutputStream out;
+        private final int dimension;
+        private long count;
+        private boolean committed;
+
+        public Writer(Path directory, long lsn, int dimension) throws IOException {
+            Files.createDirectories(directory);
+            this.directory = directory;
+            this.dimension = dimension;
+            this.file = new FileOutputStream(directory.resolve(TEMP_NAME).toFile());
+            this.buffer = new BufferedOutputStream(file, 1 << 16);
+            this.checked = new CheckedOutputStream(buffer, new CRC32());
+            this.out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(lsn);
+            out.writeInt(dimension);
+        }
+
+        // writes dimension floats of source from offset on
+        public void add(String id, float[] source, int offset) throws IOException {
+            out.writeByte(1);
+            out.writeUTF(id);
+            for (int j = 0; j < dimension; j++) {
+                out.writeFloat(source[offset + j]);
+            }
+            count++;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        /**
+         * Fsyncs the file and atomically replaces the previous checkpoint with it.
+         */
+        public void commit() throws IOException {
+            out.writeByte(0);
+            out.writeLong(count);
+            out.flush();
+            long crc = checked.getChecksum().getValue();
+            // the checksum itself is written past the checked stream
+            new DataOutputStream(buffer).writeLong(crc);
+            buffer.flush();
+            file.getChannel().force(true);
+            file.close();
+            Files.move(directory.resolve(TEMP_NAME), directory.resolve(FILE_NAME),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+        }
+
+        // an uncommitted checkpoint is discarded
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                file.close();
+                Files.deleteIfExists(directory.resolve(TEMP_NAME));
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package persistence;
+
+/**
+ * One logged mutation. vector is null for deletes.
+ */
+public record WalRecord(long lsn, Type type, String id, float[] vector) {
+    public enum Type {
+        INSERT((byte) 1), DELETE((byte) 2);
+
+        final byte code;
+
+        Type(byte code) {
+            this.code = code;
+        }
+
+        static Type of(byte code) {
+            for (Type type : values()) {
+                if (type.code == code) return type;
+            }
+            throw new IllegalArgumentException("Unknown WAL record type " + code);
+        }
+    }
+}
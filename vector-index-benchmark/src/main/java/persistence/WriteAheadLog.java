@@ -0,0 +1,458 @@
+package persistence;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of insert and delete records with group commit.
+ *
+ * Appenders only encode their record into a shared in-memory batch and take the next LSN; a single
+ * flusher thread writes the whole batch with one write and one fsync, so concurrent appenders share
+ * the fsync instead of paying one each. In GROUP mode an append returns once its record is on disk;
+ * in ASYNC mode it returns at once and the flusher writes and syncs every flushIntervalMs, so a
+ * crash loses at most that window.
+ *
+ * The log is a sequence of segment files wal-[first LSN].log. Each record is
+ * [int payload length][int CRC32 of payload][payload: long lsn, byte type, short id length,
+ * id UTF-8, int dimension, floats]. Replay stops at the first torn or corrupt record of a segment,
+ * which is how a crash mid-write shows up; a reopened log always starts a new segment.
+ */
+public class WriteAheadLog implements AutoCloseable {
+    public enum SyncMode {
+        // append waits until its record is fsynced, concurrent appends share the fsync
+        GROUP,
+        // append returns at once, the log is written and fsynced every flushIntervalMs
+        ASYNC
+    }
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_BYTES = 2 * Integer.BYTES;
+    // a record larger than this is treated as corruption on replay
+    private static final int MAX_PAYLOAD_BYTES = 64 << 20;
+
+    private final Path directory;
+    private final SyncMode mode;
+    private final long flushIntervalMs;
+    private final int maxPendingBytes;
+
+    // guards pending, the LSN counters and the conditions
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasPending = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private final Condition hasRoom = lock.newCondition();
+    private ByteBuffer pending;
+    private ByteBuffer writing;
+    private long lastLsn;
+    private long writtenLsn;
+    private long durableLsn;
+    private IOException failure;
+    private boolean closed;
+    // set by sync(), makes the flusher fsync without waiting for the interval
+    private boolean syncRequested;
+
+    // the flusher holds this while writing, rollover while swapping the segment
+    private final Object channelLock = new Object();
+    private FileChannel channel;
+
+    private final Thread flusher;
+    private long syncCount;
+    private long recordCount;
+    private long bytesWritten;
+
+    /**
+     * Opens a new segment for records from nextLsn on; existing segments are kept for replay.
+     */
+    public WriteAheadLog(Path directory, long nextLsn, SyncMode mode, long flushIntervalMs, int maxPendingBytes)
+            throws IOException {
+        this.directory = directory;
+        this.mode = mode;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxPendingBytes = maxPendingBytes;
+        this.pending = ByteBuffer.allocate(Math.min(maxPendingBytes, 1 << 20));
+        this.writing = ByteBuffer.allocate(pending.capacity());
+        this.lastLsn = nextLsn - 1;
+        this.writtenLsn = lastLsn;
+        this.durableLsn = lastLsn;
+
+        Files.createDirectories(directory);
+        this.channel = openSegment(nextLsn);
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public WriteAheadLog(Path directory, long nextLsn, SyncMode mode) throws IOException {
+        this(directory, nextLsn, mode, 10, 16 << 20);
+    }
+
+    public long appendInsert(String id, float[] vector) {
+        return append(WalRecord.Type.INSERT, id, vector);
+    }
+
+    public long appendDelete(String id) {
+        return append(WalRecord.Type.DELETE, id, null);
+    }
+
+    /**
+     * Adds the record to the current batch and returns its LSN; in GROUP mode only once it is
+     * durable. Blocks while maxPendingBytes are waiting for the flusher.
+     */
+    private long append(WalRecord.Type type, String id, float[] vector) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int dimension = vector == null ? 0 : vector.length;
+        int payloadBytes = Long.BYTES + 1 + Short.BYTES + idBytes.length + Integer.BYTES + dimension * Float.BYTES;
+        int recordBytes = HEADER_BYTES + payloadBytes;
+
+        long lsn;
+        lock.lock();
+        try {
+            while (pending.position() > 0 && pending.position() + recordBytes > maxPendingBytes && !closed && failure == null) {
+                hasRoom.awaitUninterruptibly();
+            }
+            checkUsable();
+            if (pending.remaining() < recordBytes) {
+                pending = grow(pending, pending.position() + recordBytes);
+            }
+
+            lsn = ++lastLsn;
+            int start = pending.position();
+            pending.position(start + HEADER_BYTES);
+            pending.putLong(lsn);
+            pending.put(type.code);
+            pending.putShort((short) idBytes.length);
+            pending.put(idBytes);
+            pending.putInt(dimension);
+            for (int j = 0; j < dimension; j++) {
+                pending.putFloat(vector[j]);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(pending.array(), start + HEADER_BYTES, payloadBytes);
+            pending.putInt(start, payloadBytes);
+            pending.putInt(start + Integer.BYTES, (int) crc.getValue());
+            recordCount++;
+            hasPending.signal();
+
+            if (mode == SyncMode.GROUP) {
+                awaitDurable(lsn);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return lsn;
+    }
+
+    /**
+     * Waits until every record appended so far is fsynced, also in ASYNC mode.
+     */
+    public void sync() {
+        lock.lock();
+        try {
+            awaitDurable(lastLsn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must hold lock
+    private void awaitDurable(long lsn) {
+        while (durableLsn < lsn) {
+            // a close still flushes everything appended before it, only a failed flusher gives up
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+            syncRequested = true;
+            hasPending.signal();
+            flushed.awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * Starts a new segment; records appended from here on go to it. Lets the segments that only
+     * hold records covered by a checkpoint be deleted with deleteSegmentsThrough.
+     */
+    public void rollover() throws IOException {
+        synchronized (channelLock) {
+            long nextLsn;
+            lock.lock();
+            try {
+                nextLsn = writtenLsn + 1;
+            } finally {
+                lock.unlock();
+            }
+            channel.force(false);
+            channel.close();
+            channel = openSegment(nextLsn);
+        }
+    }
+
+    /**
+     * Deletes the segments whose records all have an LSN of at most lsn, the current one is kept.
+     */
+    public int deleteSegmentsThrough(long lsn) throws IOException {
+        List<Path> segments = segments(directory);
+        int deleted = 0;
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstLsn(segments.get(i + 1)) - 1 <= lsn) {
+                Files.deleteIfExists(segments.get(i));
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    public long getLastLsn() {
+        lock.lock();
+        try {
+            return lastLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDurableLsn() {
+        lock.lock();
+        try {
+            return durableLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSyncCount() {
+        lock.lock();
+        try {
+            return syncCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRecordCount() {
+        lock.lock();
+        try {
+            return recordCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytesWritten() {
+        lock.lock();
+        try {
+            return bytesWritten;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes and syncs what is pending and stops the flusher.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            hasPending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (channelLock) {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void flushLoop() {
+        long lastSync = System.nanoTime();
+        while (true) {
+            long batchLsn;
+            boolean forceSync;
+            lock.lock();
+            try {
+                if (mode == SyncMode.GROUP) {
+                    while (pending.position() == 0 && !closed && !syncRequested) {
+                        hasPending.await();
+                    }
+                } else if (pending.position() == 0 && !closed && !syncRequested) {
+                    // ASYNC wakes up once per interval to write and sync what came in
+                    hasPending.await(flushIntervalMs, TimeUnit.MILLISECONDS);
+                }
+                if (closed && pending.position() == 0 && writtenLsn == durableLsn) {
+                    return;
+                }
+                // swap the batches, appenders keep filling the other one while this one is written
+                ByteBuffer batch = pending;
+                pending = writing;
+                writing = batch;
+                batchLsn = lastLsn;
+                forceSync = syncRequested || closed;
+                syncRequested = false;
+                hasRoom.signalAll();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                synchronized (channelLock) {
+                    writing.flip();
+                    int bytes = writing.remaining();
+                    while (writing.hasRemaining()) {
+                        channel.write(writing);
+                    }
+                    writing.clear();
+
+                    // GROUP syncs every batch, ASYNC once per interval
+                    long now = System.nanoTime();
+                    boolean sync = mode == SyncMode.GROUP || forceSync
+                            || TimeUnit.NANOSECONDS.toMillis(now - lastSync) >= flushIntervalMs;
+                    lock.lock();
+                    try {
+                        sync &= batchLsn > durableLsn;
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (sync) {
+                        channel.force(false);
+                        lastSync = now;
+                    }
+
+                    lock.lock();
+                    try {
+                        writtenLsn = batchLsn;
+                        bytesWritten += bytes;
+                        if (sync) {
+                            durableLsn = batchLsn;
+                            syncCount++;
+                        }
+                        flushed.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    flushed.signalAll();
+                    hasRoom.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+        }
+    }
+
+    // must hold lock
+    private void checkUsable() {
+        if (failure != null) {
+            throw new UncheckedIOException("Write-ahead log failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Write-ahead log is closed");
+        }
+    }
+
+    private FileChannel openSegment(long firstLsn) throws IOException {
+        return FileChannel.open(directory.resolve(segmentName(firstLsn)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(minCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    /**
+     * Feeds every intact record with an LSN above afterLsn to the consumer in LSN order and
+     * returns the highest LSN found (afterLsn if none).
+     */
+    public static long replay(Path directory, long afterLsn, Consumer<WalRecord> consumer) throws IOException {
+        long maxLsn = afterLsn;
+        if (!Files.isDirectory(directory)) {
+            return maxLsn;
+        }
+        for (Path segment : segments(directory)) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment));
+            CRC32 crc = new CRC32();
+            while (data.remaining() >= HEADER_BYTES) {
+                int start = data.position();
+                int payloadBytes = data.getInt();
+                int checksum = data.getInt();
+                if (payloadBytes <= 0 || payloadBytes > MAX_PAYLOAD_BYTES || payloadBytes > data.remaining()) {
+                    System.out.println("WAL " + segment.getFileName() + ": torn record at byte " + start + ", rest of segment skipped");
+                    break;
+                }
+                crc.reset();
+                crc.update(data.array(), data.position(), payloadBytes);
+                if ((int) crc.getValue() != checksum) {
+                    System.out.println("WAL " + segment.getFileName() + ": checksum mismatch at byte " + start + ", rest of segment skipped");
+                    break;
+                }
+
+                long lsn = data.getLong();
+                WalRecord.Type type = WalRecord.Type.of(data.get());
+                byte[] idBytes = new byte[data.getShort() & 0xffff];
+                data.get(idBytes);
+                int dimension = data.getInt();
+                float[] vector = type == WalRecord.Type.INSERT ? new float[dimension] : null;
+                for (int j = 0; j < dimension; j++) {
+                    float value = data.getFloat();
+                    if (vector != null) vector[j] = value;
+                }
+                if (lsn > afterLsn) {
+                    consumer.accept(new WalRecord(lsn, type, new String(idBytes, StandardCharsets.UTF_8), vector));
+                    maxLsn = Math.max(maxLsn, lsn);
+                }
+            }
+        }
+        return maxLsn;
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                    .filter(p -> p.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                            && p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static String segmentName(long firstLsn) {
+        // zero padded, so name order is LSN order
+        return String.format("%s%020d%s", SEGMENT_PREFIX, firstLsn, SEGMENT_SUFFIX);
+    }
+
+    private static long firstLsn(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
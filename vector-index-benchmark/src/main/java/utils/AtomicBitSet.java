@@ -0,0 +1,88 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// growable bitset safe for concurrent use, bits are set and read with atomic word operations
+// words live in fixed size segments that never move once allocated; growing only copies the
+// segment table, so a set() racing with a grow is never lost
+public class AtomicBitSet {
+    // 2^16 words = 2^22 bits per segment
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int SEGMENT_WORDS = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_WORDS - 1;
+
+    private volatile AtomicLongArray[] segments = new AtomicLongArray[0];
+
+    // makes bits [0, bits) addressable
+    public void ensureCapacity(int bits) {
+        int words = (bits + 63) >>> 6;
+        int needed = (words + SEGMENT_WORDS - 1) >>> SEGMENT_SHIFT;
+        if (needed <= segments.length) {
+            return;
+        }
+        synchronized (this) {
+            AtomicLongArray[] current = segments;
+            if (needed <= current.length) {
+                return;
+            }
+            AtomicLongArray[] grown = Arrays.copyOf(current, needed);
+            for (int s = current.length; s < needed; s++) {
+                grown[s] = new AtomicLongArray(SEGMENT_WORDS);
+            }
+            segments = grown;
+        }
+    }
+
+    // sets the bit, returns false if it was already set
+    public boolean set(int index) {
+        AtomicLongArray segment = segment(index);
+        int word = (index >>> 6) & SEGMENT_MASK;
+        long bit = 1L << index;
+        long old = segment.getAndUpdate(word, w -> w | bit);
+        return (old & bit) == 0;
+    }
+
+    // clears the bit, returns false if it was not set
+    public boolean clear(int index) {
+        AtomicLongArray segment = segment(index);
+        int word = (index >>> 6) & SEGMENT_MASK;
+        long bit = 1L << index;
+        long old = segment.getAndUpdate(word, w -> w & ~bit);
+        return (old & bit) != 0;
+    }
+
+    // bits beyond the capacity read as unset
+    public boolean get(int index) {
+        return (word(index) & (1L << index)) != 0;
+    }
+
+    // the 64 bits holding index, bit (index & 63) is index itself; lets scans test a run of
+    // consecutive bits with one volatile read
+    public long word(int index) {
+        AtomicLongArray[] current = segments;
+        int segment = index >>> (SEGMENT_SHIFT + 6);
+        if (segment >= current.length) {
+            return 0;
+        }
+        return current[segment].get((index >>> 6) & SEGMENT_MASK);
+    }
+
+    // clears every bit, the capacity is kept
+    public void clearAll() {
+        for (AtomicLongArray segment : segments) {
+            for (int w = 0; w < SEGMENT_WORDS; w++) {
+                segment.set(w, 0);
+            }
+        }
+    }
+
+    private AtomicLongArray segment(int index) {
+        AtomicLongArray[] current = segments;
+        int segment = index >>> (SEGMENT_SHIFT + 6);
+        if (segment >= current.length) {
+            throw new IndexOutOfBoundsException("Bit " + index + " is beyond the capacity");
+        }
+        return current[segment];
+    }
+}
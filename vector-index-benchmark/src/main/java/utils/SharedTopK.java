@@ -0,0 +1,49 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// top k shared by the partitions of one fan-out query (see core.FanOutSearch), lower scores are better
+// partitions scan into their own TopKSelector and merge it in when done, so the lock is taken once per
+// partition; the bound is a lock-free float that only goes down, partitions read it while scanning and
+// skip candidates that can no longer make the final top k
+public class SharedTopK {
+    private final TopKSelector merged;
+    // Float.floatToIntBits of the bound
+    private final AtomicInteger bound = new AtomicInteger(Float.floatToIntBits(Float.POSITIVE_INFINITY));
+
+    public SharedTopK(int k) {
+        this.merged = new TopKSelector(k);
+    }
+
+    // score a candidate has to beat to still matter, +inf until some partition holds k candidates
+    public float bound() {
+        return Float.intBitsToFloat(bound.get());
+    }
+
+    // a partition holding k candidates at or below score knows the final kth is no worse than that,
+    // publishing it early lets the partitions still running prune against it
+    public void tighten(float score) {
+        while (true) {
+            int current = bound.get();
+            if (!(score < Float.intBitsToFloat(current))) {
+                return;
+            }
+            if (bound.compareAndSet(current, Float.floatToIntBits(score))) {
+                return;
+            }
+        }
+    }
+
+    public synchronized void merge(TopKSelector partial) {
+        for (int i = 0; i < partial.size(); i++) {
+            merged.offer(partial.ordinalAt(i), partial.scoreAt(i));
+        }
+        tighten(merged.threshold());
+    }
+
+    // sorts the merged top k best first, only once every partition is done
+    public synchronized TopKSelector result() {
+        merged.sortAscending();
+        return merged;
+    }
+}
@@ -0,0 +1,118 @@
+package utils;
+
+import java.util.Arrays;
+
+// fixed size max-heap of (ordinal, score) pairs kept in two primitive arrays
+// the root is the worst of the current top k, so a losing candidate costs one comparison
+// and nothing is allocated for it; lower scores are better
+public class TopKSelector {
+    private final int k;
+    private final int[] ordinals;
+    private final float[] scores;
+    private int size;
+
+    public TopKSelector(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        this.k = k;
+        this.ordinals = new int[k];
+        this.scores = new float[k];
+    }
+
+    // returns true if the candidate made it into the current top k
+    public boolean offer(int ordinal, float score) {
+        if (size < k) {
+            ordinals[size] = ordinal;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (score >= scores[0]) {
+            return false;
+        }
+        ordinals[0] = ordinal;
+        scores[0] = score;
+        siftDown(0, size);
+        return true;
+    }
+
+    // score a candidate has to beat to get in, +inf until the heap is full
+    public float threshold() {
+        return size < k ? Float.POSITIVE_INFINITY : scores[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == k;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // heap sort in place, afterwards ordinalAt/scoreAt walk the results best first
+    // the selector must be cleared before offering again
+    public void sortAscending() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    public int ordinalAt(int i) {
+        return ordinals[i];
+    }
+
+    public float scoreAt(int i) {
+        return scores[i];
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (scores[parent] >= scores[i]) {
+                break;
+            }
+            swap(parent, i);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= end) {
+                break;
+            }
+            int largest = left;
+            int right = left + 1;
+            if (right < end && scores[right] > scores[left]) {
+                largest = right;
+            }
+            if (scores[i] >= scores[largest]) {
+                break;
+            }
+            swap(i, largest);
+            i = largest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int ordinal = ordinals[a];
+        ordinals[a] = ordinals[b];
+        ordinals[b] = ordinal;
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+
+    @Override
+    public String toString() {
+        return "TopKSelector{k=" + k + ", size=" + size +
+                ", ordinals=" + Arrays.toString(Arrays.copyOf(ordinals, size)) + '}';
+    }
+}